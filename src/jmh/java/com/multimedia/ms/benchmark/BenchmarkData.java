@@ -0,0 +1,84 @@
+package com.multimedia.ms.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Documents shaped like the ones stored by the DAOs, for the benchmarks.
+ * Text and numbers come from a fixed seed so that runs are comparable.
+ */
+final class BenchmarkData {
+    
+    private static final String[] GENRES = {
+        "Rock", "Jazz", "Blues", "Pop", "Funk", "Soul", "Reggae", "Flamenco",
+        "Cumbia", "Salsa", "Bossa Nova", "Metal", "Punk", "Indie", "Folk", "Electrónica"
+    };
+    private static final String[] INSTRUMENTS = {
+        "Guitarra", "Bajo", "Batería", "Piano", "Violín", "Saxofón", "Trompeta", "Voz",
+        "Contrabajo", "Clarinete", "Ukelele", "Sintetizador", "Cajón", "Acordeón", "Flauta", "Cello"
+    };
+    
+    private BenchmarkData() {
+    }
+    
+    static Document profileDocument(Random random, int genreCount, int instrumentCount) {
+        List<String> genres = new ArrayList<>();
+        for (int i = 0; i < genreCount; i++) {
+            genres.add(GENRES[i % GENRES.length] + (i >= GENRES.length ? " " + i : ""));
+        }
+        List<String> instruments = new ArrayList<>();
+        for (int i = 0; i < instrumentCount; i++) {
+            instruments.add(INSTRUMENTS[i % INSTRUMENTS.length] + (i >= INSTRUMENTS.length ? " " + i : ""));
+        }
+        
+        return new Document("_id", new ObjectId())
+            .append("userId", new ObjectId().toString())
+            .append("name", "Artista " + random.nextInt(100000))
+            .append("biography", text(random, 600))
+            .append("imageUrl", "https://cdn.example.com/profiles/" + new ObjectId() + ".jpg")
+            .append("genres", genres)
+            .append("instruments", instruments)
+            .append("createdAt", new Date())
+            .append("updatedAt", new Date())
+            .append("averageRating", 1 + random.nextDouble() * 4)
+            .append("totalRatings", random.nextInt(5000))
+            .append("ratingSum", (long) random.nextInt(25000));
+    }
+    
+    static Document ratingDocument(Random random) {
+        return new Document("_id", new ObjectId())
+            .append("musicianId", new ObjectId().toString())
+            .append("userId", new ObjectId().toString())
+            .append("rating", 1 + random.nextInt(5))
+            .append("comment", text(random, 160))
+            .append("createdAt", new Date());
+    }
+    
+    static Document fileDocument(Random random) {
+        return new Document("_id", new ObjectId())
+            .append("fileId", new ObjectId().toString())
+            .append("filename", "grabacion_" + random.nextInt(100000) + ".mp3")
+            .append("contentType", "audio/mpeg")
+            .append("musicianId", new ObjectId().toString())
+            .append("title", "Tema " + random.nextInt(1000))
+            .append("description", text(random, 240))
+            .append("mediaType", "audio")
+            .append("fileSize", (long) random.nextInt(10485760))
+            .append("uploadDate", new Date())
+            .append("isPublic", random.nextBoolean());
+    }
+    
+    // Words of mixed length with some non-ASCII characters, as in user-written text
+    private static String text(Random random, int length) {
+        String[] words = {"canción", "ensayo", "concierto", "grabación", "estudio", "música", "en", "de", "vivo", "álbum"};
+        StringBuilder builder = new StringBuilder(length + 16);
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return builder.substring(0, length);
+    }
+}
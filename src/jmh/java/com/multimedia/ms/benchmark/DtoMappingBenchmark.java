@@ -0,0 +1,97 @@
+package com.multimedia.ms.benchmark;
+
+import com.multimedia.ms.model.MultimediaDto;
+import com.multimedia.ms.model.MusicianProfileDto;
+import com.multimedia.ms.model.RatingDto;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of mapping one stored document to its DTO and back.
+ * The decode variants include turning the BSON received from the server into a
+ * Document, which is what every read pays before fromDocument runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DtoMappingBenchmark {
+    
+    // Number of genres and of instruments on the profile
+    @Param({"2", "32"})
+    public int profileListSize;
+    
+    private final DocumentCodec codec = new DocumentCodec();
+    
+    private Document profileDocument;
+    private RawBsonDocument profileBson;
+    private MusicianProfileDto profile;
+    private Document ratingDocument;
+    private Document fileDocument;
+    private RawBsonDocument fileBson;
+    
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        profileDocument = BenchmarkData.profileDocument(random, profileListSize, profileListSize);
+        profileBson = new RawBsonDocument(profileDocument, codec);
+        profile = MusicianProfileDto.fromDocument(profileDocument);
+        ratingDocument = BenchmarkData.ratingDocument(random);
+        fileDocument = BenchmarkData.fileDocument(random);
+        fileBson = new RawBsonDocument(fileDocument, codec);
+    }
+    
+    @Benchmark
+    public MusicianProfileDto profileFromDocument() {
+        return MusicianProfileDto.fromDocument(profileDocument);
+    }
+    
+    @Benchmark
+    public MusicianProfileDto profileDecodeAndMap() {
+        return MusicianProfileDto.fromDocument(decode(profileBson));
+    }
+    
+    @Benchmark
+    public Document profileToDocument() {
+        return profile.toDocument();
+    }
+    
+    @Benchmark
+    public RatingDto ratingFromDocument() {
+        return RatingDto.fromDocument(ratingDocument);
+    }
+    
+    @Benchmark
+    public MultimediaDto fileFromDocument() {
+        return MultimediaDto.fromDocument(fileDocument);
+    }
+    
+    @Benchmark
+    public MultimediaDto fileDecodeAndMap() {
+        return MultimediaDto.fromDocument(decode(fileBson));
+    }
+    
+    private Document decode(RawBsonDocument bson) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(bson.getByteBuffer().asNIO())) {
+            return codec.decode(reader, DecoderContext.builder().build());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.multimedia.ms.benchmark;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Upload and read time of GridFS files by chunk size, against a running mongod.
+ * The reads use the same chunk query as MultimediaDao: a sorted range of n with a
+ * batch size of about 4 MB. Next to the time, every benchmark reports the commands
+ * it sent to the server per operation (roundTrips), counted by a CommandListener on
+ * the client, so the number of round trips of each chunk size is measured rather
+ * than derived. It is meant for tuning the chunk sizes of ChunkSizePolicy on the
+ * target deployment.
+ *
+ * The server is taken from the benchmark.mongodb.uri system property (default
+ * mongodb://localhost:27017), and the data is written to a scratch database that
+ * is dropped afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GridFsChunkSizeBenchmark {
+    
+    private static final String DATABASE_NAME = "gridfs_chunk_benchmark";
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final int RANGE_BYTES = 64 * 1024;
+    
+    @Param({"261120", "1048576", "4194304", "8388608"})
+    public int chunkSize;
+    
+    // A cover image, a song and a video clip
+    @Param({"40960", "8388608", "67108864"})
+    public int fileSize;
+    
+    // Commands sent by the client, each one a round trip to the server
+    private final AtomicLong commands = new AtomicLong();
+    
+    private MongoClient client;
+    private MongoDatabase database;
+    private GridFSBucket bucket;
+    private MongoCollection<Document> chunks;
+    private byte[] content;
+    private ObjectId storedFileId;
+    private Random random;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        CommandListener counter = new CommandListener() {
+            @Override
+            public void commandStarted(CommandStartedEvent event) {
+                commands.incrementAndGet();
+            }
+        };
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(
+                        System.getProperty("benchmark.mongodb.uri", "mongodb://localhost:27017")))
+                .addCommandListener(counter)
+                .build());
+        database = client.getDatabase(DATABASE_NAME);
+        database.drop();
+        bucket = GridFSBuckets.create(database, "files");
+        chunks = database.getCollection("files.chunks");
+        chunks.createIndex(Indexes.ascending("files_id", "n"));
+        
+        content = new byte[fileSize];
+        random = new Random(42);
+        random.nextBytes(content);
+        storedFileId = bucket.uploadFromStream("benchmark", new ByteArrayInputStream(content),
+                new GridFSUploadOptions().chunkSizeBytes(chunkSize));
+    }
+    
+    // Keep only the file being read, so repeated uploads do not fill the disk
+    @TearDown(Level.Iteration)
+    public void deleteUploads() {
+        for (Document file : database.getCollection("files.files").find(Filters.ne("_id", storedFileId))) {
+            bucket.delete(file.getObjectId("_id"));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.drop();
+        client.close();
+    }
+    
+    /**
+     * Commands sent per operation, reported by JMH next to the time of each benchmark
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class RoundTrips {
+        private long commands;
+        private long operations;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            commands = 0;
+            operations = 0;
+        }
+        
+        void record(long operationCommands) {
+            commands += operationCommands;
+            operations++;
+        }
+        
+        public double roundTrips() {
+            return operations > 0 ? (double) commands / operations : 0;
+        }
+    }
+    
+    @Benchmark
+    public ObjectId upload(RoundTrips roundTrips) {
+        long before = commands.get();
+        GridFSUploadOptions options = new GridFSUploadOptions().chunkSizeBytes(chunkSize);
+        ObjectId fileId = bucket.uploadFromStream("benchmark", new ByteArrayInputStream(content), options);
+        roundTrips.record(commands.get() - before);
+        return fileId;
+    }
+    
+    @Benchmark
+    public long readWholeFile(RoundTrips roundTrips) {
+        long before = commands.get();
+        long read = readChunks(0, fileSize - 1);
+        roundTrips.record(commands.get() - before);
+        return read;
+    }
+    
+    // A seek in the player: a short range at a random position
+    @Benchmark
+    public long readShortRange(RoundTrips roundTrips) {
+        long before = commands.get();
+        long start = (long) (random.nextDouble() * Math.max(1, fileSize - RANGE_BYTES));
+        long read = readChunks(start, Math.min(fileSize, start + RANGE_BYTES) - 1);
+        roundTrips.record(commands.get() - before);
+        return read;
+    }
+    
+    private long readChunks(long start, long end) {
+        int firstChunk = (int) (start / chunkSize);
+        int lastChunk = (int) (end / chunkSize);
+        int batchSize = Math.max(1, Math.min(lastChunk - firstChunk + 1, MAX_BATCH_BYTES / chunkSize));
+        
+        FindIterable<Document> found = chunks.find(
+                Filters.and(
+                    Filters.eq("files_id", storedFileId),
+                    Filters.gte("n", firstChunk),
+                    Filters.lte("n", lastChunk)
+                ))
+                .projection(Projections.include("n", "data"))
+                .sort(Sorts.ascending("n"))
+                .batchSize(batchSize);
+        
+        long read = 0;
+        try (MongoCursor<Document> cursor = found.iterator()) {
+            while (cursor.hasNext()) {
+                read += cursor.next().get("data", Binary.class).length();
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,152 @@
+package com.multimedia.ms.benchmark;
+
+import com.multimedia.ms.controller.JsonViews;
+import com.multimedia.ms.model.MusicianProfileDto;
+import com.multimedia.ms.model.RatingDto;
+import jakarta.json.Json;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObjectBuilder;
+import jakarta.json.stream.JsonGenerator;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of rendering one page of a list response.
+ * The streaming variants are what the servlets do; the tree variants build the
+ * JsonObject first and print it, as the servlets did before, and are kept as the
+ * baseline for comparing serialization strategies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonRenderingBenchmark {
+    
+    // Items in the page: the default and the maximum page size
+    @Param({"50", "200"})
+    public int pageSize;
+    
+    // Number of genres and of instruments on each profile
+    @Param({"4", "32"})
+    public int profileListSize;
+    
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(1 << 20);
+    
+    private List<MusicianProfileDto> profiles;
+    private List<RatingDto> ratings;
+    
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        profiles = new ArrayList<>();
+        ratings = new ArrayList<>();
+        for (int i = 0; i < pageSize; i++) {
+            profiles.add(MusicianProfileDto.fromDocument(
+                    BenchmarkData.profileDocument(random, profileListSize, profileListSize)));
+            ratings.add(RatingDto.fromDocument(BenchmarkData.ratingDocument(random)));
+        }
+    }
+    
+    @Benchmark
+    public int profilesStreaming() {
+        sink.reset();
+        try (JsonGenerator generator = JsonViews.createGenerator(sink)) {
+            generator.writeStartObject();
+            generator.writeStartArray("profiles");
+            for (MusicianProfileDto profile : profiles) {
+                JsonViews.writeProfile(generator, profile);
+            }
+            generator.writeEnd();
+            JsonViews.writeNextCursor(generator, null);
+            generator.writeEnd();
+        }
+        return sink.size();
+    }
+    
+    @Benchmark
+    public int profilesTree() {
+        sink.reset();
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (MusicianProfileDto profile : profiles) {
+            JsonArrayBuilder genres = Json.createArrayBuilder();
+            profile.getGenres().forEach(genres::add);
+            JsonArrayBuilder instruments = Json.createArrayBuilder();
+            profile.getInstruments().forEach(instruments::add);
+            JsonObjectBuilder json = Json.createObjectBuilder()
+                .add("id", profile.getId())
+                .add("userId", profile.getUserId())
+                .add("artisticName", profile.getName())
+                .add("imageUrl", profile.getImageUrl())
+                .add("genre", profile.getGenres().get(0))
+                .add("genres", genres)
+                .add("instruments", instruments)
+                .add("bio", profile.getBiography())
+                .add("averageRating", profile.getAverageRating())
+                .add("totalRatings", profile.getTotalRatings())
+                .add("createdAt", profile.getCreatedAt().getTime());
+            array.add(json);
+        }
+        String body = Json.createObjectBuilder()
+            .add("profiles", array)
+            .addNull("nextCursor")
+            .build()
+            .toString();
+        sink.writeBytes(body.getBytes(StandardCharsets.UTF_8));
+        return sink.size();
+    }
+    
+    @Benchmark
+    public int ratingsStreaming() {
+        sink.reset();
+        try (JsonGenerator generator = JsonViews.createGenerator(sink)) {
+            generator.writeStartObject();
+            generator.writeStartArray("ratings");
+            for (RatingDto rating : ratings) {
+                JsonViews.writeRating(generator, rating);
+            }
+            generator.writeEnd();
+            JsonViews.writeNextCursor(generator, null);
+            generator.writeEnd();
+        }
+        return sink.size();
+    }
+    
+    @Benchmark
+    public int ratingsTree() {
+        sink.reset();
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (RatingDto rating : ratings) {
+            array.add(Json.createObjectBuilder()
+                .add("id", rating.getId())
+                .add("musicianId", rating.getMusicianId())
+                .add("userId", rating.getUserId())
+                .add("rating", rating.getRating())
+                .add("comment", rating.getComment())
+                .add("createdAt", rating.getCreatedAt().getTime()));
+        }
+        String body = Json.createObjectBuilder()
+            .add("ratings", array)
+            .addNull("nextCursor")
+            .build()
+            .toString();
+        sink.writeBytes(body.getBytes(StandardCharsets.UTF_8));
+        return sink.size();
+    }
+}
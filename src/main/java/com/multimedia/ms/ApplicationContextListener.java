@@ -0,0 +1,345 @@
+package com.multimedia.ms;
+
+import com.multimedia.ms.dao.IndexManager;
+import com.multimedia.ms.dao.MediaCache;
+import com.multimedia.ms.dao.MultimediaDao;
+import com.multimedia.ms.dao.MusicianExistenceIndex;
+import com.multimedia.ms.dao.MusicianLeaderboard;
+import com.multimedia.ms.dao.MusicianProfileDao;
+import com.multimedia.ms.dao.MusicianSearchIndex;
+import com.multimedia.ms.dao.UploadSessionDao;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.util.PinningMonitor;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the application-wide resources for the lifetime of the web application.
+ *
+ * The MongoDB connection is opened once when the context starts, published as a
+ * context attribute for the servlets and closed again when the application is undeployed.
+ * The indexes the DAOs depend on are created at the same time, and the in-memory
+ * musician existence index, the full-text search index of profiles and the
+ * leaderboard of top rated musicians are loaded and kept refreshed in the
+ * background, where expired upload sessions are purged as well. The local disk cache of downloaded
+ * media is opened here and emptied of evicted files on the same schedule, and the
+ * workers running the background processing jobs of uploads are started.
+ * The executor that runs the servlet logic off the container threads lives here too,
+ * on platform or on virtual threads depending on EXECUTION_MODE.
+ */
+@WebListener
+public class ApplicationContextListener implements ServletContextListener {
+    
+    private static final Logger LOGGER = Logger.getLogger(ApplicationContextListener.class.getName());
+    
+    public static final String DATABASE_ATTRIBUTE = Database.class.getName();
+    public static final String INDEX_MANAGER_ATTRIBUTE = IndexManager.class.getName();
+    public static final String MUSICIAN_INDEX_ATTRIBUTE = MusicianExistenceIndex.class.getName();
+    public static final String LEADERBOARD_ATTRIBUTE = MusicianLeaderboard.class.getName();
+    public static final String SEARCH_INDEX_ATTRIBUTE = MusicianSearchIndex.class.getName();
+    public static final String REQUEST_EXECUTOR_ATTRIBUTE = ApplicationContextListener.class.getName() + ".requestExecutor";
+    public static final String EXECUTION_MODE_ATTRIBUTE = ApplicationContextListener.class.getName() + ".executionMode";
+    public static final String PINNING_MONITOR_ATTRIBUTE = PinningMonitor.class.getName();
+    public static final String MEDIA_CACHE_ATTRIBUTE = MediaCache.class.getName();
+    
+    private static final double MUSICIAN_INDEX_FALSE_POSITIVE_PROBABILITY = 0.01;
+    
+    private ScheduledExecutorService maintenanceExecutor;
+    private ExecutorService requestExecutor;
+    private PinningMonitor pinningMonitor;
+    private MediaCache mediaCache;
+    private ProcessingWorkers processingWorkers;
+    
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        
+        Database database = new Database();
+        context.setAttribute(DATABASE_ATTRIBUTE, database);
+        LOGGER.info("MongoDB connection pool initialized");
+        
+        requestExecutor = RequestExecutors.create(database);
+        context.setAttribute(REQUEST_EXECUTOR_ATTRIBUTE, requestExecutor);
+        boolean virtual = RequestExecutors.MODE_VIRTUAL.equals(RequestExecutors.configuredMode(database))
+                && RequestExecutors.virtualThreadsAvailable();
+        context.setAttribute(EXECUTION_MODE_ATTRIBUTE, virtual ? RequestExecutors.MODE_VIRTUAL : RequestExecutors.MODE_PLATFORM);
+        if (virtual) {
+            pinningMonitor = PinningMonitor.start(Math.max(1, database.getIntConfigValue("PINNING_THRESHOLD_MS", 20)));
+            if (pinningMonitor != null) {
+                context.setAttribute(PINNING_MONITOR_ATTRIBUTE, pinningMonitor);
+            }
+        }
+        
+        // Missing indexes do not abort the deployment; the readiness check reports them
+        IndexManager indexManager = new IndexManager(database);
+        List<String> failedIndexes = indexManager.ensureIndexes();
+        if (failedIndexes.isEmpty()) {
+            LOGGER.info("MongoDB indexes verified");
+        } else {
+            LOGGER.log(Level.SEVERE, "MongoDB indexes could not be created: {0}", failedIndexes);
+        }
+        context.setAttribute(INDEX_MANAGER_ATTRIBUTE, indexManager);
+        
+        MusicianExistenceIndex musicianIndex = new MusicianExistenceIndex(new MusicianProfileDao(database),
+                MUSICIAN_INDEX_FALSE_POSITIVE_PROBABILITY,
+                database.getIntConfigValue("MUSICIAN_INDEX_MAX_CONFIRMED", 100000));
+        context.setAttribute(MUSICIAN_INDEX_ATTRIBUTE, musicianIndex);
+        
+        MusicianLeaderboard leaderboard = new MusicianLeaderboard(new MusicianProfileDao(database),
+                Math.max(1, database.getIntConfigValue("LEADERBOARD_SIZE", 100)));
+        context.setAttribute(LEADERBOARD_ATTRIBUTE, leaderboard);
+        
+        MusicianSearchIndex searchIndex = new MusicianSearchIndex(new MusicianProfileDao(database));
+        context.setAttribute(SEARCH_INDEX_ATTRIBUTE, searchIndex);
+        
+        mediaCache = MediaCache.create(database, new MultimediaDao(database));
+        if (mediaCache != null) {
+            context.setAttribute(MEDIA_CACHE_ATTRIBUTE, mediaCache);
+        }
+        
+        processingWorkers = ProcessingWorkers.start(database, mediaCache);
+        
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The first build runs right away; until it completes lookups go to the database
+        int refreshSeconds = Math.max(1, database.getIntConfigValue("MUSICIAN_INDEX_REFRESH_SECONDS", 600));
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                musicianIndex.rebuild();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error rebuilding musician existence index", e);
+            }
+        }, 0, refreshSeconds, TimeUnit.SECONDS);
+        
+        int leaderboardRefreshSeconds = Math.max(1, database.getIntConfigValue("LEADERBOARD_REFRESH_SECONDS", 300));
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                leaderboard.rebuild();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error rebuilding musician leaderboard", e);
+            }
+        }, 0, leaderboardRefreshSeconds, TimeUnit.SECONDS);
+        
+        int searchRefreshSeconds = Math.max(1, database.getIntConfigValue("SEARCH_INDEX_REFRESH_SECONDS", 600));
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                searchIndex.rebuild();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error rebuilding musician search index", e);
+            }
+        }, 0, searchRefreshSeconds, TimeUnit.SECONDS);
+        
+        // Abandoned resumable uploads hold GridFS chunks that nothing references
+        UploadSessionDao uploadSessionDao = new UploadSessionDao(database);
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                int purged = uploadSessionDao.purgeExpiredSessions();
+                if (purged > 0) {
+                    LOGGER.info("Purged " + purged + " expired upload sessions");
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error purging expired upload sessions", e);
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+        
+        if (mediaCache != null) {
+            MediaCache cache = mediaCache;
+            maintenanceExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    cache.deleteEvicted();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error deleting evicted media cache files", e);
+                }
+            }, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+    
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+            try {
+                maintenanceExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (processingWorkers != null) {
+            processingWorkers.close();
+        }
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+            try {
+                if (!requestExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    requestExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                requestExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pinningMonitor != null) {
+            pinningMonitor.close();
+        }
+        if (mediaCache != null) {
+            mediaCache.close();
+        }
+        context.removeAttribute(MEDIA_CACHE_ATTRIBUTE);
+        context.removeAttribute(PINNING_MONITOR_ATTRIBUTE);
+        context.removeAttribute(EXECUTION_MODE_ATTRIBUTE);
+        context.removeAttribute(REQUEST_EXECUTOR_ATTRIBUTE);
+        context.removeAttribute(SEARCH_INDEX_ATTRIBUTE);
+        context.removeAttribute(LEADERBOARD_ATTRIBUTE);
+        context.removeAttribute(MUSICIAN_INDEX_ATTRIBUTE);
+        context.removeAttribute(INDEX_MANAGER_ATTRIBUTE);
+        Database database = (Database) context.getAttribute(DATABASE_ATTRIBUTE);
+        context.removeAttribute(DATABASE_ATTRIBUTE);
+        if (database != null) {
+            try {
+                database.close();
+                LOGGER.info("MongoDB connection pool closed");
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error closing MongoDB connection", e);
+            }
+        }
+    }
+    
+    /**
+     * Get the shared database connection of the web application
+     *
+     * @param context The servlet context
+     * @return The shared database connection
+     * @throws IllegalStateException if the listener has not initialized the connection
+     */
+    public static Database getDatabase(ServletContext context) {
+        Database database = (Database) context.getAttribute(DATABASE_ATTRIBUTE);
+        if (database == null) {
+            throw new IllegalStateException("Database connection has not been initialized");
+        }
+        return database;
+    }
+    
+    /**
+     * Get the index manager of the web application
+     *
+     * @param context The servlet context
+     * @return The index manager
+     * @throws IllegalStateException if the listener has not initialized the connection
+     */
+    public static IndexManager getIndexManager(ServletContext context) {
+        IndexManager indexManager = (IndexManager) context.getAttribute(INDEX_MANAGER_ATTRIBUTE);
+        if (indexManager == null) {
+            throw new IllegalStateException("Database connection has not been initialized");
+        }
+        return indexManager;
+    }
+    
+    /**
+     * Get the musician existence index of the web application
+     *
+     * @param context The servlet context
+     * @return The musician existence index
+     * @throws IllegalStateException if the listener has not initialized the connection
+     */
+    public static MusicianExistenceIndex getMusicianIndex(ServletContext context) {
+        MusicianExistenceIndex musicianIndex = (MusicianExistenceIndex) context.getAttribute(MUSICIAN_INDEX_ATTRIBUTE);
+        if (musicianIndex == null) {
+            throw new IllegalStateException("Database connection has not been initialized");
+        }
+        return musicianIndex;
+    }
+    
+    /**
+     * Get the leaderboard of top rated musicians of the web application
+     *
+     * @param context The servlet context
+     * @return The musician leaderboard
+     * @throws IllegalStateException if the listener has not initialized the connection
+     */
+    public static MusicianLeaderboard getLeaderboard(ServletContext context) {
+        MusicianLeaderboard leaderboard = (MusicianLeaderboard) context.getAttribute(LEADERBOARD_ATTRIBUTE);
+        if (leaderboard == null) {
+            throw new IllegalStateException("Database connection has not been initialized");
+        }
+        return leaderboard;
+    }
+    
+    /**
+     * Get the full-text search index of musician profiles of the web application
+     *
+     * @param context The servlet context
+     * @return The musician search index
+     * @throws IllegalStateException if the listener has not initialized the connection
+     */
+    public static MusicianSearchIndex getSearchIndex(ServletContext context) {
+        MusicianSearchIndex searchIndex = (MusicianSearchIndex) context.getAttribute(SEARCH_INDEX_ATTRIBUTE);
+        if (searchIndex == null) {
+            throw new IllegalStateException("Database connection has not been initialized");
+        }
+        return searchIndex;
+    }
+    
+    /**
+     * Get the executor running the servlet logic off the container threads
+     *
+     * @param context The servlet context
+     * @return The request executor
+     * @throws IllegalStateException if the listener has not initialized the executor
+     */
+    public static ExecutorService getRequestExecutor(ServletContext context) {
+        ExecutorService executor = (ExecutorService) context.getAttribute(REQUEST_EXECUTOR_ATTRIBUTE);
+        if (executor == null) {
+            throw new IllegalStateException("Request executor has not been initialized");
+        }
+        return executor;
+    }
+    
+    /**
+     * Get the execution mode the request executor runs in
+     *
+     * @param context The servlet context
+     * @return "platform" or "virtual"
+     * @throws IllegalStateException if the listener has not initialized the executor
+     */
+    public static String getExecutionMode(ServletContext context) {
+        String mode = (String) context.getAttribute(EXECUTION_MODE_ATTRIBUTE);
+        if (mode == null) {
+            throw new IllegalStateException("Request executor has not been initialized");
+        }
+        return mode;
+    }
+    
+    /**
+     * Get the virtual thread pinning monitor
+     *
+     * @param context The servlet context
+     * @return The pinning monitor, or null when not running on virtual threads
+     */
+    public static PinningMonitor getPinningMonitor(ServletContext context) {
+        return (PinningMonitor) context.getAttribute(PINNING_MONITOR_ATTRIBUTE);
+    }
+    
+    /**
+     * Get the local disk cache of downloaded media
+     *
+     * @param context The servlet context
+     * @return The media cache, or null when it is disabled
+     */
+    public static MediaCache getMediaCache(ServletContext context) {
+        return (MediaCache) context.getAttribute(MEDIA_CACHE_ATTRIBUTE);
+    }
+}
@@ -0,0 +1,121 @@
+package com.multimedia.ms;
+
+import com.multimedia.ms.dao.MediaCache;
+import com.multimedia.ms.dao.MediaProcessor;
+import com.multimedia.ms.dao.ProcessingJobDao;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.ProcessingJobDto;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Fixed pool of threads running the background processing jobs of uploads.
+ *
+ * Each worker claims the next due job from the queue, runs it and records the
+ * outcome, and polls the queue again after PROCESSING_POLL_MILLIS when it finds
+ * none. Every instance of the application runs its own workers; the leases of
+ * the queue keep them from running the same job at once. A job interrupted by a
+ * shutdown is claimed again by any instance once its lease ends. The cached
+ * metadata of a file is dropped once one of its jobs has run, so that downloads
+ * and metadata requests on this instance see the new results.
+ */
+final class ProcessingWorkers {
+    
+    private static final Logger LOGGER = Logger.getLogger(ProcessingWorkers.class.getName());
+    
+    private final ProcessingJobDao jobDao;
+    private final MediaProcessor processor;
+    private final MediaCache mediaCache;
+    private final long pollMillis;
+    private final ExecutorService workers;
+    
+    private ProcessingWorkers(ProcessingJobDao jobDao, MediaProcessor processor, MediaCache mediaCache,
+            long pollMillis, int threads) {
+        this.jobDao = jobDao;
+        this.processor = processor;
+        this.mediaCache = mediaCache;
+        this.pollMillis = pollMillis;
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "processing-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::run);
+        }
+    }
+    
+    /**
+     * Start the workers configured in the environment
+     *
+     * @param database The database holding the configuration and the queue
+     * @param mediaCache The local media cache (null if disabled)
+     * @return The running workers, or null if PROCESSING_WORKER_THREADS is 0
+     */
+    static ProcessingWorkers start(Database database, MediaCache mediaCache) {
+        int threads = database.getIntConfigValue("PROCESSING_WORKER_THREADS", 2);
+        if (threads <= 0) {
+            return null;
+        }
+        return new ProcessingWorkers(new ProcessingJobDao(database), new MediaProcessor(database), mediaCache,
+                Math.max(100, database.getIntConfigValue("PROCESSING_POLL_MILLIS", 2000)), threads);
+    }
+    
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            ProcessingJobDto job = null;
+            try {
+                job = jobDao.claim();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error claiming processing job", e);
+            }
+            if (job != null) {
+                process(job);
+                continue;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private void process(ProcessingJobDto job) {
+        try {
+            Document results = processor.process(job);
+            jobDao.complete(job, results);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Processing job " + job.getType() + " of " + job.getMultimediaId()
+                    + " failed on attempt " + job.getAttempts(), e);
+            try {
+                jobDao.fail(job, String.valueOf(e.getMessage()));
+            } catch (Exception failError) {
+                // The job is retried anyway when its lease ends
+                LOGGER.log(Level.WARNING, "Error recording processing failure", failError);
+            }
+        } finally {
+            if (mediaCache != null) {
+                mediaCache.invalidateMetadata(job.getMultimediaId());
+            }
+        }
+    }
+    
+    /**
+     * Stop the workers, interrupting the jobs they are running
+     */
+    void close() {
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
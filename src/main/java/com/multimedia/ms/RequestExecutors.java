@@ -0,0 +1,185 @@
+package com.multimedia.ms;
+
+import com.multimedia.ms.model.Database;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executor that runs the servlet logic and DAO calls.
+ *
+ * EXECUTION_MODE selects between a fixed pool of platform threads (the default)
+ * and one virtual thread per request. Virtual threads need JDK 21; the API is
+ * reached through reflection so the same sources still build and run on 17, where
+ * the virtual mode falls back to the platform pool.
+ *
+ * Because the same code may run on virtual threads, shared state is guarded with
+ * java.util.concurrent locks rather than synchronized: up to JDK 23 a virtual
+ * thread that blocks inside a monitor stays pinned to its carrier thread.
+ */
+final class RequestExecutors {
+    
+    private static final Logger LOGGER = Logger.getLogger(RequestExecutors.class.getName());
+    
+    static final String MODE_PLATFORM = "platform";
+    static final String MODE_VIRTUAL = "virtual";
+    
+    private RequestExecutors() {
+    }
+    
+    /**
+     * Get the configured execution mode
+     *
+     * @param database The database holding the configuration
+     * @return {@link #MODE_VIRTUAL} or {@link #MODE_PLATFORM}
+     */
+    static String configuredMode(Database database) {
+        String mode = database.getConfigValue("EXECUTION_MODE", MODE_PLATFORM).trim().toLowerCase();
+        if (!MODE_VIRTUAL.equals(mode) && !MODE_PLATFORM.equals(mode)) {
+            LOGGER.warning("Unknown EXECUTION_MODE '" + mode + "', using " + MODE_PLATFORM);
+            return MODE_PLATFORM;
+        }
+        return mode;
+    }
+    
+    /**
+     * Create the request executor for the configured execution mode
+     *
+     * @param database The database holding the configuration
+     * @return The request executor
+     */
+    static ExecutorService create(Database database) {
+        if (MODE_VIRTUAL.equals(configuredMode(database))) {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory != null) {
+                int maxInFlight = Math.max(1, database.getIntConfigValue("VIRTUAL_MAX_IN_FLIGHT", 10000));
+                LOGGER.info("Request executor runs on virtual threads, up to " + maxInFlight + " requests in flight");
+                return new BoundedExecutor(newThreadPerTaskExecutor(factory), maxInFlight);
+            }
+            LOGGER.warning("EXECUTION_MODE=virtual needs JDK 21 or later, running on platform threads");
+        }
+        return platformExecutor(database);
+    }
+    
+    /**
+     * Check whether the running JDK supports virtual threads
+     *
+     * @return true if virtual threads are available
+     */
+    static boolean virtualThreadsAvailable() {
+        return virtualThreadFactory() != null;
+    }
+    
+    /**
+     * Fixed pool with a bounded queue, so that an overloaded node answers 503
+     * instead of accumulating requests that will time out anyway
+     */
+    private static ExecutorService platformExecutor(Database database) {
+        int threads = Math.max(1, database.getIntConfigValue("REQUEST_EXECUTOR_THREADS", 64));
+        int queueSize = Math.max(1, database.getIntConfigValue("REQUEST_EXECUTOR_QUEUE", 1000));
+        AtomicInteger threadNumber = new AtomicInteger();
+        LOGGER.info("Request executor started with " + threads + " threads");
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "request-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+    
+    // Thread.ofVirtual().name("request-vt-", 0).factory()
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "request-vt-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    // Executors.newThreadPerTaskExecutor(factory)
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread executor not available", e);
+        }
+    }
+    
+    /**
+     * Caps the number of tasks in flight on an unbounded executor. Virtual threads
+     * are cheap, but every request still holds memory and, eventually, a pooled
+     * MongoDB connection, so the node rejects work beyond the cap with 503.
+     */
+    private static final class BoundedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+        
+        BoundedExecutor(ExecutorService delegate, int maxInFlight) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxInFlight);
+        }
+        
+        @Override
+        public void execute(Runnable command) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many requests in flight");
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                permits.release();
+                LOGGER.log(Level.SEVERE, "Error starting request thread", e);
+                throw new RejectedExecutionException(e);
+            }
+        }
+        
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+        
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+        
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+        
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+        
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.multimedia.ms.controller;
+
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.model.Database;
+import jakarta.json.Json;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous request processing shared by the API servlets.
+ *
+ * The container thread only starts async mode and, for requests with a JSON body,
+ * reads the body with a non-blocking {@link ReadListener} as the bytes arrive. The
+ * servlet logic itself, including every DAO call, then runs on the application's
+ * request executor, and the request is completed when it returns, unless the
+ * response body was handed over to a non-blocking writer with {@link #keepOpen}.
+ *
+ * A request that times out before its handler starts is answered with 503 and the
+ * handler never runs. Once the handler runs it owns the request: a timeout only marks
+ * it abandoned, and the request is completed when the handler returns. Handlers that
+ * transfer a long body call {@code setTimeout(0)} on the async context.
+ */
+final class AsyncRequests {
+    
+    private static final Logger LOGGER = Logger.getLogger(AsyncRequests.class.getName());
+    
+    private static final String KEEP_OPEN_ATTRIBUTE = AsyncRequests.class.getName() + ".keepOpen";
+    
+    private static final int READ_BUFFER_SIZE = 8192;
+    
+    private final Executor executor;
+    private final long timeoutMillis;
+    private final int maxBodyBytes;
+    
+    /**
+     * Servlet logic run on the request executor
+     */
+    @FunctionalInterface
+    interface Handler {
+        void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+    }
+    
+    private AsyncRequests(Executor executor, long timeoutMillis, int maxBodyBytes) {
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+    
+    /**
+     * Create the async processing of a servlet, using the application's request executor
+     *
+     * @param context The servlet context
+     * @return The async processing
+     */
+    static AsyncRequests forContext(ServletContext context) {
+        Database database = ApplicationContextListener.getDatabase(context);
+        return new AsyncRequests(
+                ApplicationContextListener.getRequestExecutor(context),
+                database.getIntConfigValue("ASYNC_REQUEST_TIMEOUT_MS", 60000),
+                database.getIntConfigValue("MAX_JSON_BODY_BYTES", 1024 * 1024));
+    }
+    
+    /**
+     * Get the executor running the servlet logic
+     *
+     * @return The request executor
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Process a request asynchronously
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param handler The servlet logic
+     * @throws IOException if an I/O error occurs
+     */
+    void dispatch(HttpServletRequest request, HttpServletResponse response, Handler handler) throws IOException {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeoutMillis);
+        TimeoutListener timeout = new TimeoutListener();
+        asyncContext.addListener(timeout);
+        
+        if (hasBufferedBody(request)) {
+            long declaredLength = request.getContentLengthLong();
+            if (declaredLength > maxBodyBytes) {
+                if (timeout.claim()) {
+                    sendError(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body too large");
+                    asyncContext.complete();
+                }
+                return;
+            }
+            ServletInputStream input = request.getInputStream();
+            input.setReadListener(new BodyReader(asyncContext, input, executor, maxBodyBytes, handler, timeout));
+        } else {
+            execute(asyncContext, executor, request, handler, timeout);
+        }
+    }
+    
+    /**
+     * Leave the request open after the handler returns; whoever calls this
+     * becomes responsible for completing the async context
+     *
+     * @param request servlet request
+     */
+    static void keepOpen(HttpServletRequest request) {
+        request.setAttribute(KEEP_OPEN_ATTRIBUTE, Boolean.TRUE);
+    }
+    
+    // Multipart bodies are left to the multipart parser; upload content and NDJSON imports are streamed by their servlets
+    private static boolean hasBufferedBody(HttpServletRequest request) {
+        String method = request.getMethod();
+        if (!"POST".equals(method) && !"PUT".equals(method) && !"PATCH".equals(method)) {
+            return false;
+        }
+        String contentType = request.getContentType();
+        if (contentType == null) {
+            return true;
+        }
+        contentType = contentType.toLowerCase();
+        return !contentType.startsWith("multipart/") && !contentType.startsWith(UploadSessionServlet.CONTENT_TYPE)
+                && !contentType.startsWith(RatingServlet.NDJSON_CONTENT_TYPE);
+    }
+    
+    private static void execute(AsyncContext asyncContext, Executor executor, HttpServletRequest request,
+            Handler handler, TimeoutListener timeout) {
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        try {
+            executor.execute(() -> run(asyncContext, request, response, handler, timeout));
+        } catch (RejectedExecutionException e) {
+            if (!timeout.claim()) {
+                return;
+            }
+            LOGGER.warning("Request executor saturated, rejecting " + request.getMethod() + " " + request.getRequestURI());
+            try {
+                response.setHeader("Retry-After", "1");
+                sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy, try again later");
+            } catch (IOException ioe) {
+                LOGGER.log(Level.FINE, "Could not send busy response", ioe);
+            }
+            asyncContext.complete();
+        }
+    }
+    
+    private static void run(AsyncContext asyncContext, HttpServletRequest request, HttpServletResponse response,
+            Handler handler, TimeoutListener timeout) {
+        if (!timeout.claim()) {
+            // Timed out while waiting for a thread and already answered
+            return;
+        }
+        try {
+            handler.handle(request, response);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Unhandled error processing " + request.getRequestURI(), e);
+            if (!timeout.isAbandoned()) {
+                try {
+                    sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+                } catch (Exception ignored) {
+                    // The client is gone or the response is no longer usable
+                }
+            }
+        } finally {
+            if (request.getAttribute(KEEP_OPEN_ATTRIBUTE) == null) {
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException e) {
+                    // The container gave up on the request after it was abandoned
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write a JSON error response, unless the response has already been committed
+     *
+     * @param response servlet response
+     * @param statusCode HTTP status code
+     * @param message Error message
+     * @throws IOException if an I/O error occurs
+     */
+    static void sendError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        if (response.isCommitted()) {
+            return;
+        }
+        response.resetBuffer();
+        response.setStatus(statusCode);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        String body = Json.createObjectBuilder()
+                .add("error", message != null ? message : "Internal server error")
+                .build()
+                .toString();
+        response.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Collects a request body as the container reports it readable, then hands the
+     * request to the executor with the body buffered in memory
+     */
+    private static final class BodyReader implements ReadListener {
+        private final AsyncContext asyncContext;
+        private final ServletInputStream input;
+        private final Executor executor;
+        private final int maxBodyBytes;
+        private final Handler handler;
+        private final TimeoutListener timeout;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private boolean failed;
+        
+        BodyReader(AsyncContext asyncContext, ServletInputStream input, Executor executor,
+                int maxBodyBytes, Handler handler, TimeoutListener timeout) {
+            this.asyncContext = asyncContext;
+            this.input = input;
+            this.executor = executor;
+            this.maxBodyBytes = maxBodyBytes;
+            this.handler = handler;
+            this.timeout = timeout;
+        }
+        
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (!failed && input.isReady()) {
+                int read = input.read(buffer);
+                if (read < 0) {
+                    return;
+                }
+                body.write(buffer, 0, read);
+                if (body.size() > maxBodyBytes) {
+                    failed = true;
+                    if (timeout.claim()) {
+                        sendError((HttpServletResponse) asyncContext.getResponse(),
+                                HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body too large");
+                        asyncContext.complete();
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public void onAllDataRead() {
+            if (failed) {
+                return;
+            }
+            HttpServletRequest request = new BufferedBodyRequest(
+                    (HttpServletRequest) asyncContext.getRequest(), body.toByteArray());
+            execute(asyncContext, executor, request, handler, timeout);
+        }
+        
+        @Override
+        public void onError(Throwable t) {
+            LOGGER.log(Level.FINE, "Error reading request body", t);
+            if (!failed) {
+                failed = true;
+                if (timeout.claim()) {
+                    asyncContext.complete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Request whose body has already been read into memory
+     */
+    private static final class BufferedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+        
+        BufferedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+        
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream input = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return input.read();
+                }
+                
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return input.read(b, off, len);
+                }
+                
+                @Override
+                public boolean isFinished() {
+                    return input.available() == 0;
+                }
+                
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+                
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    throw new IllegalStateException("The request body has already been read");
+                }
+            };
+        }
+        
+        @Override
+        public BufferedReader getReader() throws UnsupportedEncodingException {
+            String encoding = getCharacterEncoding();
+            Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+            return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), charset));
+        }
+        
+        @Override
+        public int getContentLength() {
+            return body.length;
+        }
+        
+        @Override
+        public long getContentLengthLong() {
+            return body.length;
+        }
+    }
+    
+    /**
+     * Decides who completes a request: the first to {@link #claim()} it, which is
+     * either its handler or a timeout that fires before the handler starts
+     */
+    private static final class TimeoutListener implements AsyncListener {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile boolean abandoned;
+        
+        /**
+         * Take over the completion of the request
+         *
+         * @return true if nobody had taken it over before
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+        
+        boolean isAbandoned() {
+            return abandoned;
+        }
+        
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            AsyncContext asyncContext = event.getAsyncContext();
+            String uri = ((HttpServletRequest) asyncContext.getRequest()).getRequestURI();
+            abandoned = true;
+            if (!claim()) {
+                // The handler is running and completes the request when it returns
+                LOGGER.warning("Request timed out while running, abandoned: " + uri);
+                return;
+            }
+            LOGGER.warning("Request timed out: " + uri);
+            sendError((HttpServletResponse) asyncContext.getResponse(),
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out");
+            asyncContext.complete();
+        }
+        
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+        
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
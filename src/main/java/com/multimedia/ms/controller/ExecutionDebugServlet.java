@@ -0,0 +1,94 @@
+package com.multimedia.ms.controller;
+
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.util.PinningMonitor;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Reports how requests are being executed: the execution mode, the load of the
+ * platform thread pool and, on virtual threads, the call sites where threads were
+ * pinned to their carrier.
+ */
+@WebServlet("/debug/execution")
+public class ExecutionDebugServlet extends HttpServlet {
+    
+    private static final int DEFAULT_HOTSPOTS = 20;
+    
+    /**
+     * Handles the HTTP GET method. The optional "limit" parameter sets the number
+     * of pinning hotspots returned.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        
+        int limit = DEFAULT_HOTSPOTS;
+        String limitParam = request.getParameter("limit");
+        if (limitParam != null) {
+            try {
+                limit = Math.max(1, Integer.parseInt(limitParam));
+            } catch (NumberFormatException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    generator.write("error", "Invalid limit");
+                    generator.writeEnd();
+                }
+                return;
+            }
+        }
+        
+        try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+            generator.writeStartObject();
+            generator.write("executionMode", ApplicationContextListener.getExecutionMode(getServletContext()));
+            generator.write("javaVersion", Runtime.version().toString());
+            generator.write("availableProcessors", Runtime.getRuntime().availableProcessors());
+            
+            ExecutorService executor = ApplicationContextListener.getRequestExecutor(getServletContext());
+            if (executor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+                generator.writeStartObject("threadPool");
+                generator.write("poolSize", pool.getPoolSize());
+                generator.write("activeThreads", pool.getActiveCount());
+                generator.write("queuedTasks", pool.getQueue().size());
+                generator.write("completedTasks", pool.getCompletedTaskCount());
+                generator.writeEnd();
+            }
+            
+            PinningMonitor pinningMonitor = ApplicationContextListener.getPinningMonitor(getServletContext());
+            if (pinningMonitor != null) {
+                generator.writeStartObject("pinning");
+                generator.write("thresholdMs", pinningMonitor.getThresholdMillis());
+                generator.writeStartArray("hotspots");
+                for (PinningMonitor.Hotspot hotspot : pinningMonitor.getHotspots(limit)) {
+                    generator.writeStartObject();
+                    generator.write("stackTrace", hotspot.getStackTrace());
+                    generator.write("count", hotspot.getCount());
+                    generator.write("totalMs", hotspot.getTotalMillis());
+                    generator.write("maxMs", hotspot.getMaxMillis());
+                    generator.writeEnd();
+                }
+                generator.writeEnd();
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.multimedia.ms.controller;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.multimedia.ms.dao.MultimediaDao;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the content of a stored file with a non-blocking {@link WriteListener}.
+ *
+ * The response body is a sequence of literal byte segments (multipart headers) and
+ * byte windows of the stored file. Windows are read from GridFS a batch of chunks at
+ * a time, or from the local media cache, on the request executor, and each batch is
+ * written only while the client connection accepts data. No thread waits on a slow
+ * client: when the socket buffer is full the container calls back once it drains,
+ * and the next batch is only read after the previous one has been handed to the
+ * container.
+ */
+final class FileContentWriter implements WriteListener, AsyncListener {
+    
+    private static final Logger LOGGER = Logger.getLogger(FileContentWriter.class.getName());
+    
+    // Content read per round trip to GridFS or the disk
+    private static final int FETCH_BYTES = 1024 * 1024;
+    
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final Source source;
+    private final Executor executor;
+    // Literal bytes (ByteBuffer) and file windows (Window) still to send
+    private final Deque<Object> segments = new ArrayDeque<>();
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private long windowPosition = -1;
+    private boolean fetching;
+    private boolean finished;
+    
+    private FileContentWriter(AsyncContext asyncContext, ServletOutputStream out, Source source, Executor executor) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.source = source;
+        this.executor = executor;
+    }
+    
+    /**
+     * Where the content of the file is read from
+     */
+    interface Source extends Closeable {
+        
+        /**
+         * Read the beginning of a byte window of the file
+         *
+         * @param start First byte to read (inclusive)
+         * @param end Last byte of the window (inclusive)
+         * @param maxBytes Approximate maximum number of bytes to read
+         * @return The content read, in order, starting at start
+         * @throws IOException if the content cannot be read
+         */
+        List<ByteBuffer> read(long start, long end, int maxBytes) throws IOException;
+        
+        @Override
+        default void close() throws IOException {
+        }
+    }
+    
+    /**
+     * Builder of the response body segments
+     */
+    static final class Body {
+        private final FileContentWriter writer;
+        
+        private Body(FileContentWriter writer) {
+            this.writer = writer;
+        }
+        
+        /**
+         * Append literal bytes to the body
+         *
+         * @param bytes The bytes to send
+         * @return This body
+         */
+        Body bytes(byte[] bytes) {
+            writer.segments.add(ByteBuffer.wrap(bytes));
+            return this;
+        }
+        
+        /**
+         * Append a byte window of the stored file to the body
+         *
+         * @param start First byte (inclusive)
+         * @param end Last byte (inclusive)
+         * @return This body
+         */
+        Body range(long start, long end) {
+            if (end >= start) {
+                writer.segments.add(new Window(start, end));
+            }
+            return this;
+        }
+        
+        /**
+         * Start sending the body. Headers must be set before; the request stays
+         * open until the whole body has been written or the client goes away.
+         */
+        void send() throws IOException {
+            HttpServletRequest request = (HttpServletRequest) writer.asyncContext.getRequest();
+            if ("HEAD".equals(request.getMethod())) {
+                // Headers only; the request completes when the handler returns
+                writer.closeSource();
+                return;
+            }
+            AsyncRequests.keepOpen(request);
+            // The transfer may take as long as the client needs
+            writer.asyncContext.setTimeout(0);
+            writer.asyncContext.addListener(writer);
+            writer.out.setWriteListener(writer);
+        }
+    }
+    
+    /**
+     * Prepare a non-blocking body for an asynchronous request
+     *
+     * @param request servlet request in async mode
+     * @param source Where the content is read from; closed once the body is sent
+     * @param executor Executor running the reads
+     * @return The body builder
+     * @throws IOException if the output stream cannot be obtained
+     */
+    static Body forFile(HttpServletRequest request, Source source, Executor executor) throws IOException {
+        AsyncContext asyncContext = request.getAsyncContext();
+        ServletOutputStream out = asyncContext.getResponse().getOutputStream();
+        return new Body(new FileContentWriter(asyncContext, out, source, executor));
+    }
+    
+    /**
+     * Content stored in GridFS
+     *
+     * @param multimediaDao DAO reading the content
+     * @param storedFile The GridFS file entry holding the content
+     * @return The source
+     */
+    static Source gridFs(MultimediaDao multimediaDao, GridFSFile storedFile) {
+        return (start, end, maxBytes) -> multimediaDao.readRange(storedFile, start, end, maxBytes);
+    }
+    
+    /**
+     * Content of a local file
+     *
+     * @param channel An open channel on the file; closed with the source
+     * @return The source
+     */
+    static Source localFile(FileChannel channel) {
+        return new Source() {
+            @Override
+            public List<ByteBuffer> read(long start, long end, int maxBytes) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(maxBytes, end - start + 1));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                return List.of(buffer);
+            }
+            
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+    
+    @Override
+    public void onWritePossible() throws IOException {
+        pump();
+    }
+    
+    /**
+     * Write as much as the connection accepts, scheduling a GridFS read when the
+     * buffered content runs out. Called by the container when the connection is
+     * writable and by the executor when a read completes.
+     */
+    private void pump() throws IOException {
+        lock.lock();
+        try {
+            pumpLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void pumpLocked() throws IOException {
+        while (!finished && out.isReady()) {
+            ByteBuffer buffer = buffers.peek();
+            if (buffer != null) {
+                buffers.poll();
+                // A non-blocking write accepts the whole array; isReady() reports when it has drained
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                continue;
+            }
+            if (fetching) {
+                return;
+            }
+            
+            Object segment = segments.peek();
+            if (segment == null) {
+                finished = true;
+                asyncContext.complete();
+                return;
+            }
+            if (segment instanceof ByteBuffer) {
+                segments.poll();
+                buffers.add((ByteBuffer) segment);
+                continue;
+            }
+            
+            Window window = (Window) segment;
+            long start = windowPosition >= 0 ? windowPosition : window.start;
+            fetching = true;
+            try {
+                executor.execute(() -> fetch(start, window.end));
+            } catch (RejectedExecutionException e) {
+                fail(e);
+            }
+            return;
+        }
+    }
+    
+    private void fetch(long start, long end) {
+        try {
+            List<ByteBuffer> slices = source.read(start, end, FETCH_BYTES);
+            long read = 0;
+            for (ByteBuffer slice : slices) {
+                read += slice.remaining();
+            }
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                if (read == 0) {
+                    throw new IllegalStateException("No content read at offset " + start);
+                }
+                buffers.addAll(slices);
+                long next = start + read;
+                if (next > end) {
+                    segments.poll();
+                    windowPosition = -1;
+                } else {
+                    windowPosition = next;
+                }
+                fetching = false;
+                pumpLocked();
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+    
+    private void fail(Throwable t) {
+        lock.lock();
+        try {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            LOGGER.log(Level.SEVERE, "Error sending file content", t);
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            if (!response.isCommitted()) {
+                // Nothing sent yet: answer with an error rather than a truncated body
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            // Otherwise the body ends short of its Content-Length, which tells the client it was cut
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing file content output", e);
+            }
+            asyncContext.complete();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void onError(Throwable t) {
+        // Usually the client closed the connection
+        LOGGER.log(Level.FINE, "Download aborted", t);
+        stop();
+    }
+    
+    @Override
+    public void onComplete(AsyncEvent event) {
+        stop();
+    }
+    
+    @Override
+    public void onTimeout(AsyncEvent event) {
+    }
+    
+    @Override
+    public void onError(AsyncEvent event) {
+        stop();
+    }
+    
+    private void stop() {
+        lock.lock();
+        try {
+            finished = true;
+            buffers.clear();
+        } finally {
+            lock.unlock();
+        }
+        closeSource();
+    }
+    
+    private void closeSource() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing file content source", e);
+        }
+    }
+    
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+    
+    private static final class Window {
+        private final long start;
+        private final long end;
+        
+        Window(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
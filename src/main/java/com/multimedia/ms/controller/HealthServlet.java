@@ -0,0 +1,104 @@
+package com.multimedia.ms.controller;
+
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.dao.IndexManager;
+import com.multimedia.ms.model.Database;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Liveness and readiness probes.
+ *
+ * The service is only ready when MongoDB answers and every index declared by
+ * {@link IndexManager} exists, so an instance that would run collection scans
+ * never receives traffic.
+ */
+@WebServlet("/health/*")
+public class HealthServlet extends HttpServlet {
+    
+    private static final Logger LOGGER = Logger.getLogger(HealthServlet.class.getName());
+    
+    /**
+     * Handles the HTTP GET method for:
+     * - Liveness (/health/live)
+     * - Readiness (/health/ready)
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        String pathInfo = request.getPathInfo();
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        
+        if ("/live".equals(pathInfo)) {
+            try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                generator.writeStartObject();
+                generator.write("status", "UP");
+                generator.writeEnd();
+            }
+        } else if ("/ready".equals(pathInfo)) {
+            checkReadiness(response);
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                generator.writeStartObject();
+                generator.write("error", "Resource not found");
+                generator.writeEnd();
+            }
+        }
+    }
+    
+    private void checkReadiness(HttpServletResponse response) throws IOException {
+        String error = null;
+        List<String> drift = null;
+        try {
+            Database database = ApplicationContextListener.getDatabase(getServletContext());
+            database.getDatabase().runCommand(new Document("ping", 1));
+            
+            drift = ApplicationContextListener.getIndexManager(getServletContext()).findDrift();
+            if (!drift.isEmpty()) {
+                LOGGER.log(Level.WARNING, "Required MongoDB indexes are missing: {0}", drift);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Readiness check failed", e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        
+        boolean ready = error == null && drift.isEmpty();
+        if (!ready) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        
+        try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+            generator.writeStartObject();
+            generator.write("status", ready ? "UP" : "DOWN");
+            if (error != null) {
+                generator.write("error", error);
+            }
+            if (drift != null) {
+                generator.writeStartArray("indexDrift");
+                for (String index : drift) {
+                    generator.write(index);
+                }
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+        }
+    }
+}
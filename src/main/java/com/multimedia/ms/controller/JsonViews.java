@@ -0,0 +1,224 @@
+package com.multimedia.ms.controller;
+
+import com.multimedia.ms.model.MultimediaDto;
+import com.multimedia.ms.model.MusicianProfileDto;
+import com.multimedia.ms.model.RatingDto;
+import com.multimedia.ms.model.UploadSessionDto;
+import jakarta.json.Json;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonGeneratorFactory;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JSON representations of the API resources, written with a streaming generator.
+ * Lists are rendered element by element straight onto the response stream, so no
+ * JSON tree or intermediate string of the whole response is ever built.
+ */
+public final class JsonViews {
+    
+    // Looking up the JSON provider is expensive, so one factory is shared
+    private static final JsonGeneratorFactory GENERATOR_FACTORY =
+            Json.createGeneratorFactory(Collections.emptyMap());
+    
+    private JsonViews() {
+    }
+    
+    /**
+     * Create a generator writing UTF-8 JSON to an output stream
+     *
+     * @param outputStream The stream to write to
+     * @return The JSON generator
+     */
+    public static JsonGenerator createGenerator(OutputStream outputStream) {
+        return GENERATOR_FACTORY.createGenerator(outputStream, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Write a multimedia file's metadata as a JSON object
+     *
+     * @param generator The JSON generator
+     * @param file Multimedia DTO
+     */
+    public static void writeFile(JsonGenerator generator, MultimediaDto file) {
+        generator.writeStartObject();
+        writeString(generator, "id", file.getId());
+        writeString(generator, "fileId", file.getFileId());
+        writeString(generator, "filename", file.getFilename());
+        writeString(generator, "contentType", file.getContentType());
+        writeString(generator, "musicianId", file.getMusicianId());
+        writeString(generator, "title", file.getTitle());
+        generator.write("description", file.getDescription() != null ? file.getDescription() : "");
+        writeString(generator, "mediaType", file.getMediaType());
+        generator.write("fileSize", file.getFileSize());
+        generator.write("isPublic", file.isIsPublic());
+        if (file.getUploadDate() != null) {
+            generator.write("uploadDate", file.getUploadDate().getTime());
+        }
+        if (file.getThumbnails() != null && !file.getThumbnails().isEmpty()) {
+            generator.writeStartArray("thumbnailSizes");
+            for (String size : file.getThumbnails().keySet()) {
+                generator.write(Integer.parseInt(size));
+            }
+            generator.writeEnd();
+        }
+        if (file.getDuration() != null) {
+            generator.write("duration", file.getDuration());
+        }
+        if (file.getProcessing() != null) {
+            generator.writeStartObject("processing");
+            file.getProcessing().forEach(generator::write);
+            generator.writeEnd();
+        }
+        generator.writeEnd();
+    }
+    
+    /**
+     * Write the progress of a resumable upload as a JSON object
+     *
+     * @param generator The JSON generator
+     * @param session Upload session DTO
+     */
+    public static void writeUploadSession(JsonGenerator generator, UploadSessionDto session) {
+        generator.writeStartObject();
+        writeString(generator, "uploadId", session.getId());
+        writeString(generator, "filename", session.getFilename());
+        generator.write("offset", session.getOffset());
+        generator.write("length", session.getLength());
+        generator.write("chunkSize", session.getChunkSize());
+        if (session.getExpiresAt() != null) {
+            generator.write("expiresAt", session.getExpiresAt().getTime());
+        }
+        generator.writeEnd();
+    }
+    
+    /**
+     * Write a musician profile as a JSON object
+     *
+     * @param generator The JSON generator
+     * @param profile Musician profile DTO
+     */
+    public static void writeProfile(JsonGenerator generator, MusicianProfileDto profile) {
+        generator.writeStartObject();
+        writeProfileFields(generator, profile);
+        generator.writeEnd();
+    }
+    
+    /**
+     * Write a musician profile matching a search as a JSON object, with its relevance score
+     *
+     * @param generator The JSON generator
+     * @param profile Musician profile DTO
+     * @param score Relevance of the profile to the search
+     */
+    public static void writeSearchHit(JsonGenerator generator, MusicianProfileDto profile, double score) {
+        generator.writeStartObject();
+        writeProfileFields(generator, profile);
+        generator.write("score", score);
+        generator.writeEnd();
+    }
+    
+    private static void writeProfileFields(JsonGenerator generator, MusicianProfileDto profile) {
+        writeString(generator, "id", profile.getId());
+        writeString(generator, "userId", profile.getUserId());
+        writeString(generator, "artisticName", profile.getName());
+        
+        // Añadir imageUrl si está disponible
+        if (profile.getImageUrl() != null && !profile.getImageUrl().isEmpty()) {
+            generator.write("imageUrl", profile.getImageUrl());
+        } else {
+            generator.writeNull("imageUrl");
+        }
+        
+        // Add genres, keeping the first one as "genre" for compatibility
+        List<String> genres = profile.getGenres();
+        if (genres != null && !genres.isEmpty()) {
+            writeString(generator, "genre", genres.get(0));
+        } else {
+            generator.writeNull("genre");
+        }
+        writeStringArray(generator, "genres", genres);
+        writeStringArray(generator, "instruments", profile.getInstruments());
+        
+        writeString(generator, "bio", profile.getBiography());
+        
+        // Add ratings information
+        generator.write("averageRating", profile.getAverageRating());
+        generator.write("totalRatings", profile.getTotalRatings());
+        if (profile.getRatingHistogram() != null) {
+            writeRatingHistogram(generator, "ratingHistogram", profile.getRatingHistogram());
+        }
+        if (profile.getRankingScore() != null) {
+            generator.write("rankingScore", profile.getRankingScore());
+        }
+        
+        if (profile.getCreatedAt() != null) {
+            generator.write("createdAt", profile.getCreatedAt().getTime());
+        }
+    }
+    
+    /**
+     * Write a rating histogram as a JSON object keyed by rating value, "1" to "5"
+     *
+     * @param generator JSON generator positioned inside an object
+     * @param name Field name
+     * @param histogram Number of ratings of each value, 1 to 5
+     */
+    public static void writeRatingHistogram(JsonGenerator generator, String name, long[] histogram) {
+        generator.writeStartObject(name);
+        for (int value = 1; value <= 5; value++) {
+            generator.write(String.valueOf(value), histogram[value - 1]);
+        }
+        generator.writeEnd();
+    }
+    
+    /**
+     * Write a rating as a JSON object
+     *
+     * @param generator The JSON generator
+     * @param rating Rating DTO
+     */
+    public static void writeRating(JsonGenerator generator, RatingDto rating) {
+        generator.writeStartObject();
+        writeString(generator, "id", rating.getId());
+        writeString(generator, "musicianId", rating.getMusicianId());
+        writeString(generator, "userId", rating.getUserId());
+        generator.write("rating", rating.getRating());
+        writeString(generator, "comment", rating.getComment());
+        
+        if (rating.getCreatedAt() != null) {
+            generator.write("createdAt", rating.getCreatedAt().getTime());
+        }
+        generator.writeEnd();
+    }
+    
+    /**
+     * Write the cursor of the next page, or null on the last page
+     *
+     * @param generator The JSON generator
+     * @param nextCursor The next page cursor (may be null)
+     */
+    public static void writeNextCursor(JsonGenerator generator, String nextCursor) {
+        writeString(generator, "nextCursor", nextCursor);
+    }
+    
+    private static void writeString(JsonGenerator generator, String name, String value) {
+        if (value != null) {
+            generator.write(name, value);
+        } else {
+            generator.writeNull(name);
+        }
+    }
+    
+    private static void writeStringArray(JsonGenerator generator, String name, List<String> values) {
+        generator.writeStartArray(name);
+        if (values != null) {
+            for (String value : values) {
+                generator.write(value);
+            }
+        }
+        generator.writeEnd();
+    }
+}
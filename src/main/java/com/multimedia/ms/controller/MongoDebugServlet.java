@@ -3,6 +3,7 @@ package com.multimedia.ms.controller;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.multimedia.ms.ApplicationContextListener;
 import com.multimedia.ms.model.Database;
 import jakarta.json.Json;
 import jakarta.json.JsonArrayBuilder;
@@ -33,8 +34,8 @@ public class MongoDebugServlet extends HttpServlet {
         PrintWriter out = response.getWriter();
         
         try {
-            // Crear instancia de Database para obtener conexión a MongoDB
-            Database database = new Database();
+            // Usar la conexión compartida de la aplicación
+            Database database = ApplicationContextListener.getDatabase(getServletContext());
             MongoClient mongoClient = database.getMongoClient();
             
             // Listar bases de datos para confirmar conexión
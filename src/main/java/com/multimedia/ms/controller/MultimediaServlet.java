@@ -1,55 +1,79 @@
 package com.multimedia.ms.controller;
 
-import com.multimedia.ms.dao.MusicianProfileDao;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.dao.MediaCache;
+import com.multimedia.ms.dao.MusicianExistenceIndex;
 import com.multimedia.ms.dao.MultimediaDao;
+import com.multimedia.ms.dao.ThumbnailStore;
 import com.multimedia.ms.model.Database;
-import com.multimedia.ms.model.MusicianProfileDto;
 import com.multimedia.ms.model.MultimediaDto;
+import com.multimedia.ms.util.ByteRange;
+import com.multimedia.ms.util.ConditionalRequest;
+import com.multimedia.ms.util.Pagination;
 import jakarta.json.Json;
-import jakarta.json.JsonArrayBuilder;
 import jakarta.json.JsonObject;
-import jakarta.json.JsonObjectBuilder;
 import jakarta.json.JsonReader;
+import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.ServletException;
-import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import jakarta.servlet.http.Part;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.FilenameUtils;
+import org.bson.types.ObjectId;
 
 /**
  * Servlet controller for multimedia files
  */
-@WebServlet(name = "MultimediaServlet", urlPatterns = {"/multimedia/*"})
-@MultipartConfig(
-    fileSizeThreshold = 1024 * 1024,      // 1 MB
-    maxFileSize = 1024 * 1024 * 10,       // 10 MB
-    maxRequestSize = 1024 * 1024 * 100    // 100 MB
-)
+@WebServlet(name = "MultimediaServlet", urlPatterns = {"/multimedia/*"}, asyncSupported = true)
 public class MultimediaServlet extends HttpServlet {
     
-    private final MultimediaDao multimediaDao;
-    private final MusicianProfileDao profileDao;
-    private final Set<String> allowedFileTypes;
-    private final long maxFileSize;
-    private final String uploadTempDir;
+    // Room for the form fields of an upload besides the file itself
+    private static final long MAX_FORM_FIELDS_BYTES = 64 * 1024;
     
-    public MultimediaServlet() {
-        this.multimediaDao = new MultimediaDao();
-        this.profileDao = new MusicianProfileDao();
-        
-        // Crear instancia de Database para acceder a las variables de entorno
-        Database database = new Database();
+    // Tomcat writes the file to the socket itself when a synchronous request sets these
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    
+    private AsyncRequests asyncRequests;
+    private MultimediaDao multimediaDao;
+    private MediaCache mediaCache;
+    private MusicianExistenceIndex musicianIndex;
+    private Set<String> allowedFileTypes;
+    private long maxFileSize;
+    private int publicMaxAgeSeconds;
+    
+    @Override
+    public void init() throws ServletException {
+        // Conexión compartida creada por ApplicationContextListener
+        Database database = ApplicationContextListener.getDatabase(getServletContext());
+        this.multimediaDao = new MultimediaDao(database);
+        this.musicianIndex = ApplicationContextListener.getMusicianIndex(getServletContext());
+        // Null when the cache is disabled
+        this.mediaCache = ApplicationContextListener.getMediaCache(getServletContext());
         
         // Definir tipos de archivos permitidos con valores predeterminados seguros
         String defaultTypes = "mp3,mp4,jpg,jpeg,png";
@@ -60,33 +84,38 @@ public class MultimediaServlet extends HttpServlet {
         String defaultMaxSize = "10485760";
         this.maxFileSize = Long.parseLong(database.getConfigValue("MAX_FILE_SIZE", defaultMaxSize));
         
-        // Configurar directorio temporal
-        String defaultTempDir = System.getProperty("java.io.tmpdir");
-        this.uploadTempDir = database.getConfigValue("UPLOAD_TEMP_DIR", defaultTempDir);
+        // How long browsers and proxies may reuse the content of a public file without revalidating
+        this.publicMaxAgeSeconds = Math.max(0, database.getIntConfigValue("PUBLIC_CACHE_MAX_AGE_SECONDS", 3600));
         
-        // Asegurar que el directorio temporal existe y tiene permisos de escritura
-        try {
-            File tempDir = new File(uploadTempDir);
-            if (!tempDir.exists()) {
-                boolean created = tempDir.mkdirs();
-                if (!created) {
-                    System.err.println("Warning: Could not create upload temp directory: " + uploadTempDir);
-                }
-            }
-            
-            if (!tempDir.canWrite()) {
-                System.err.println("Warning: Upload temp directory is not writable: " + uploadTempDir);
-            }
-        } catch (SecurityException e) {
-            System.err.println("Security exception creating temp directory: " + e.getMessage());
+        this.asyncRequests = AsyncRequests.forContext(getServletContext());
+    }
+    
+    /**
+     * Runs every request asynchronously: the servlet logic and its DAO calls
+     * execute on the request executor instead of a container thread.
+     * Downloads and thumbnails found in the media cache are the exception, see
+     * {@link #sendCachedFile}.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (sendCachedFile(request, response)) {
+            return;
         }
+        asyncRequests.dispatch(request, response, super::service);
     }
-
+    
     /**
      * Handles the HTTP GET method for:
      * - Getting all multimedia files for a musician
      * - Getting file metadata by ID
      * - Downloading a file
+     * - Getting a thumbnail of an image
      *
      * @param request servlet request
      * @param response servlet response
@@ -103,69 +132,40 @@ public class MultimediaServlet extends HttpServlet {
         
         try {
             if (pathInfo == null || pathInfo.equals("/")) {
-                // List files route: /multimedia?musicianId=xxx&publicOnly=true
+                // List files route: /multimedia?musicianId=xxx&publicOnly=true&limit=50&cursor=yyy
                 String musicianId = request.getParameter("musicianId");
                 String publicOnlyStr = request.getParameter("publicOnly"); 
                 boolean publicOnly = publicOnlyStr != null && (publicOnlyStr.equalsIgnoreCase("true") || publicOnlyStr.equals("1"));
-                
-                List<MultimediaDto> files;
-                JsonObjectBuilder resultBuilder = Json.createObjectBuilder();
+                int limit = Pagination.parseLimit(request.getParameter("limit"));
+                ObjectId after = Pagination.decodeCursor(request.getParameter("cursor"));
                 
                 if (musicianId != null && !musicianId.isEmpty()) {
                     // Si se proporciona musicianId, verificar que existe el músico
-                    MusicianProfileDto musician = profileDao.getProfileById(musicianId);
-                    if (musician == null) {
+                    if (!musicianIndex.exists(musicianId)) {
                         handleError(response, HttpServletResponse.SC_NOT_FOUND, "Musician not found with ID: " + musicianId);
                         return;
                     }
-                    
-                    // Get files for specific musician
-                    if (publicOnly) {
-                        files = multimediaDao.getPublicFilesByMusicianId(musicianId);
-                    } else {
-                        files = multimediaDao.getFilesByMusicianId(musicianId);
-                    }
-                    
-                    // Añadir musicianId al resultado
-                    resultBuilder.add("musicianId", musicianId);
                 } else {
-                    // Si no se proporciona musicianId, obtener todos los archivos
-                    try {
-                        files = multimediaDao.getAllFiles();
-                    } catch (Exception e) {
-                        handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error retrieving all files: " + e.toString());
-                        e.printStackTrace();
-                        return;
-                    }
+                    // Si no se proporciona musicianId, listar los archivos de todos los músicos
+                    musicianId = null;
                 }
                 
-                JsonArrayBuilder filesArray = Json.createArrayBuilder();
-                
-                for (MultimediaDto file : files) {
-                    JsonObjectBuilder fileJson = Json.createObjectBuilder()
-                        .add("id", file.getId())
-                        .add("fileId", file.getFileId())
-                        .add("filename", file.getFilename())
-                        .add("contentType", file.getContentType())
-                        .add("musicianId", file.getMusicianId())
-                        .add("title", file.getTitle())
-                        .add("description", file.getDescription() != null ? file.getDescription() : "")
-                        .add("mediaType", file.getMediaType())
-                        .add("fileSize", file.getFileSize())
-                        .add("isPublic", file.isIsPublic())
-                        .add("uploadDate", file.getUploadDate().getTime());
-                    filesArray.add(fileJson);
-                }
-                
-                JsonObject result = Json.createObjectBuilder()
-                    .add("files", filesArray)
-                    .build();
-                
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(result.toString());
-                    out.flush();
+                String listedMusicianId = musicianId;
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    generator.writeStartArray("files");
+                    String nextCursor = multimediaDao.forEachFile(listedMusicianId, publicOnly, after, limit,
+                            file -> JsonViews.writeFile(generator, file));
+                    generator.writeEnd();
+                    
+                    // Añadir musicianId al resultado
+                    if (listedMusicianId != null) {
+                        generator.write("musicianId", listedMusicianId);
+                    }
+                    JsonViews.writeNextCursor(generator, nextCursor);
+                    generator.writeEnd();
                 }
-                
+            
             } else if (pathInfo.matches("^/[^/]+$")) {
                 // Get file metadata: /multimedia/{id}
                 String id = pathInfo.substring(1);
@@ -176,52 +176,59 @@ public class MultimediaServlet extends HttpServlet {
                     return;
                 }
                 
-                JsonObject result = Json.createObjectBuilder()
-                    .add("id", file.getId())
-                    .add("fileId", file.getFileId())
-                    .add("filename", file.getFilename())
-                    .add("contentType", file.getContentType())
-                    .add("musicianId", file.getMusicianId())
-                    .add("title", file.getTitle())
-                    .add("description", file.getDescription() != null ? file.getDescription() : "")
-                    .add("mediaType", file.getMediaType())
-                    .add("fileSize", file.getFileSize())
-                    .add("isPublic", file.isIsPublic())
-                    .add("uploadDate", file.getUploadDate().getTime())
-                    .build();
-                
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(result.toString());
-                    out.flush();
+                // Metadata can change at any time: caches must revalidate, which costs a 304 at most
+                Date lastModified = file.getUpdatedAt() != null ? file.getUpdatedAt() : file.getUploadDate();
+                String etag = ConditionalRequest.strongEtag(file.getId() + "-"
+                        + Long.toHexString(lastModified != null ? lastModified.getTime() : 0));
+                if (setValidators(request, response, etag, lastModified,
+                        (file.isIsPublic() ? "public" : "private") + ", no-cache")) {
+                    return;
                 }
                 
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    JsonViews.writeFile(generator, file);
+                }
+            
             } else if (pathInfo.matches("^/[^/]+/download$")) {
                 // Download file: /multimedia/{id}/download
                 String id = pathInfo.substring(1, pathInfo.lastIndexOf("/"));
-                MultimediaDto file = multimediaDao.getFileMetadata(id);
-                
+                MultimediaDto file = findDownloadMetadata(id);
                 if (file == null) {
                     handleError(response, HttpServletResponse.SC_NOT_FOUND, "File not found");
                     return;
                 }
-                
-                response.setContentType(file.getContentType());
-                response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getFilename() + "\"");
-                response.setContentLength((int) file.getFileSize());
-                
-                // Get file content
-                byte[] fileContent = multimediaDao.downloadFile(file.getFileId());
-                response.getOutputStream().write(fileContent);
+                sendStoredContent(request, response, StoredContent.original(file));
+            
+            } else if (pathInfo.matches("^/[^/]+/thumbnail$")) {
+                // Thumbnail of an image: /multimedia/{id}/thumbnail?size={pixels}
+                String id = pathInfo.substring(1, pathInfo.lastIndexOf("/"));
+                int size = parseThumbnailSize(request.getParameter("size"));
+                MultimediaDto file = findDownloadMetadata(id);
+                if (file == null) {
+                    handleError(response, HttpServletResponse.SC_NOT_FOUND, "File not found");
+                    return;
+                }
+                if (!"image".equals(file.getMediaType())) {
+                    handleError(response, HttpServletResponse.SC_NOT_FOUND, "File is not an image");
+                    return;
+                }
+                sendStoredContent(request, response, StoredContent.thumbnail(file, size));
+            
             } else {
                 handleError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
             }
+        } catch (IllegalArgumentException e) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
-
+    
     /**
-     * Handles the HTTP POST method for uploading a new file
+     * Handles the HTTP POST method for uploading a new file.
+     * The multipart body is parsed as it arrives and the file part is written
+     * straight to GridFS, without spooling it to memory or disk first. The form
+     * fields must therefore precede the file part.
      *
      * @param request servlet request
      * @param response servlet response
@@ -235,89 +242,141 @@ public class MultimediaServlet extends HttpServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
         
+        String requestContentType = request.getContentType();
+        if (requestContentType == null || !requestContentType.toLowerCase().startsWith(FileUploadBase.MULTIPART)) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Request must be multipart/form-data");
+            return;
+        }
+        
+        // The body takes as long as the client needs to send it; a stalled connection fails the read instead
+        request.getAsyncContext().setTimeout(0);
         try {
-            // Validate musician exists
-            String musicianId = request.getParameter("musicianId");
-            if (musicianId == null || musicianId.isEmpty()) {
-                handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Musician ID is required");
-                return;
-            }
-            
-            MusicianProfileDto musician = profileDao.getProfileById(musicianId);
-            if (musician == null) {
-                handleError(response, HttpServletResponse.SC_NOT_FOUND, "Musician profile not found");
-                return;
-            }
+            FileUpload upload = new FileUpload();
+            // Enforced while the body streams in, not after it has been stored
+            upload.setFileSizeMax(maxFileSize);
+            upload.setSizeMax(maxFileSize + MAX_FORM_FIELDS_BYTES);
             
-            // Get form data parameters
-            String title = request.getParameter("title");
-            String description = request.getParameter("description");
-            String isPublicStr = request.getParameter("isPublic");
-            boolean isPublic = isPublicStr != null && Boolean.parseBoolean(isPublicStr);
-            
-            // Validate required fields
-            if (title == null || title.isEmpty()) {
-                handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Title is required");
-                return;
+            String encoding = request.getCharacterEncoding() != null ? request.getCharacterEncoding() : "UTF-8";
+            Map<String, String> fields = new HashMap<>();
+            FileItemIterator items = upload.getItemIterator(new MultipartRequestContext(request));
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    try (InputStream fieldStream = item.openStream()) {
+                        fields.put(item.getFieldName(), Streams.asString(fieldStream, encoding));
+                    }
+                } else if ("file".equals(item.getFieldName())) {
+                    uploadFile(request, response, fields, item);
+                    return;
+                }
             }
             
-            // Get file part
-            Part filePart = request.getPart("file");
-            if (filePart == null) {
+            if (fields.get("musicianId") == null || fields.get("musicianId").isEmpty()) {
+                handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Musician ID is required");
+            } else {
                 handleError(response, HttpServletResponse.SC_BAD_REQUEST, "No file uploaded");
-                return;
             }
-            
-            // Validate file
-            long fileSize = filePart.getSize();
-            if (fileSize > maxFileSize) {
-                handleError(response, HttpServletResponse.SC_BAD_REQUEST, 
+        } catch (Exception e) {
+            if (isSizeLimitExceeded(e)) {
+                handleError(response, HttpServletResponse.SC_BAD_REQUEST,
                         "File size exceeds maximum allowed (" + (maxFileSize / 1024 / 1024) + "MB)");
-                return;
-            }
-            
-            String fileName = filePart.getSubmittedFileName();
-            String extension = FilenameUtils.getExtension(fileName).toLowerCase();
-            
-            if (!allowedFileTypes.contains(extension)) {
-                handleError(response, HttpServletResponse.SC_BAD_REQUEST, 
-                        "File type not allowed. Allowed types: " + String.join(", ", allowedFileTypes));
-                return;
+            } else if (e instanceof FileUploadException) {
+                handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid multipart request: " + e.getMessage());
+            } else {
+                handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
             }
+        }
+    }
+    
+    /**
+     * Validates the form fields received before the file part and streams the
+     * file content into GridFS
+     * 
+     * @param request servlet request
+     * @param response servlet response
+     * @param fields Form fields that preceded the file part
+     * @param filePart The file part, not read yet
+     * @throws IOException if an I/O error occurs
+     */
+    private void uploadFile(HttpServletRequest request, HttpServletResponse response, Map<String, String> fields,
+            FileItemStream filePart) throws IOException {
+        // Validate musician exists
+        String musicianId = fields.get("musicianId");
+        if (musicianId == null || musicianId.isEmpty()) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Musician ID is required");
+            return;
+        }
+        
+        if (!musicianIndex.exists(musicianId)) {
+            handleError(response, HttpServletResponse.SC_NOT_FOUND, "Musician profile not found");
+            return;
+        }
+        
+        // Get form data parameters
+        String title = fields.get("title");
+        String description = fields.get("description");
+        String isPublicStr = fields.get("isPublic");
+        boolean isPublic = isPublicStr != null && Boolean.parseBoolean(isPublicStr);
+        
+        // Validate required fields
+        if (title == null || title.isEmpty()) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Title is required");
+            return;
+        }
+        
+        // Validate file
+        String fileName = filePart.getName();
+        if (fileName == null || fileName.isEmpty()) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, "No file uploaded");
+            return;
+        }
+        String extension = FilenameUtils.getExtension(fileName).toLowerCase();
+        
+        if (!allowedFileTypes.contains(extension)) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, 
+                    "File type not allowed. Allowed types: " + String.join(", ", allowedFileTypes));
+            return;
+        }
+        
+        String contentType = filePart.getContentType();
+        String mediaType = determineMediaType(contentType);
+        
+        // Save to MongoDB; the size is counted while the content streams in, and the
+        // request length, an upper bound of it, picks the chunk size
+        MultimediaDto savedFile;
+        try (InputStream fileInputStream = filePart.openStream()) {
+            MultimediaDto multimedia = new MultimediaDto();
+            multimedia.setFilename(FilenameUtils.getName(fileName));
+            multimedia.setContentType(contentType);
+            multimedia.setMediaType(mediaType);
+            multimedia.setMusicianId(musicianId);
+            multimedia.setTitle(title);
+            multimedia.setDescription(description);
+            multimedia.setIsPublic(isPublic);
             
-            // Create temporary file
-            String contentType = filePart.getContentType();
-            String mediaType = determineMediaType(contentType);
-            
-            // Save to MongoDB
-            try (InputStream fileInputStream = filePart.getInputStream()) {
-                MultimediaDto multimedia = new MultimediaDto();
-                multimedia.setFilename(fileName);
-                multimedia.setContentType(contentType);
-                multimedia.setMediaType(mediaType);
-                multimedia.setMusicianId(musicianId);
-                multimedia.setTitle(title);
-                multimedia.setDescription(description);
-                multimedia.setFileSize(fileSize);
-                multimedia.setIsPublic(isPublic);
-                
-                // Save file to MongoDB usando uploadFile (no saveFile)
-                MultimediaDto savedFile = multimediaDao.uploadFile(multimedia, fileInputStream);
-                
-                JsonObject result = Json.createObjectBuilder()
-                    .add("id", savedFile.getId())
-                    .add("message", "File uploaded successfully")
-                    .build();
-                
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(result.toString());
-                    out.flush();
-                }
+            savedFile = multimediaDao.uploadFile(multimedia, fileInputStream, request.getContentLengthLong());
+        }
+        
+        JsonObject result = Json.createObjectBuilder()
+            .add("id", savedFile.getId())
+            .add("message", "File uploaded successfully")
+            .build();
+        
+        try (PrintWriter out = response.getWriter()) {
+            out.print(result.toString());
+            out.flush();
+        }
+    }
+    
+    // The size limit surfaces from inside the GridFS upload wrapped in other exceptions
+    private static boolean isSizeLimitExceeded(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FileUploadBase.FileSizeLimitExceededException
+                    || cause instanceof FileUploadBase.SizeLimitExceededException) {
+                return true;
             }
-            
-        } catch (Exception e) {
-            handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
+        return false;
     }
     
     /**
@@ -376,6 +435,9 @@ public class MultimediaServlet extends HttpServlet {
             
             // Actualizar los metadatos usando el método implementado en MultimediaDao
             boolean updated = multimediaDao.updateFile(file);
+            if (mediaCache != null) {
+                mediaCache.invalidateMetadata(id);
+            }
             
             if (!updated) {
                 handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to update file metadata");
@@ -391,7 +453,7 @@ public class MultimediaServlet extends HttpServlet {
                 out.print(result.toString());
                 out.flush();
             }
-            
+        
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
@@ -429,6 +491,14 @@ public class MultimediaServlet extends HttpServlet {
             
             // Delete file from MongoDB
             multimediaDao.deleteFile(id);
+            if (mediaCache != null) {
+                // The content may still be used by other files; it is cached again on their next download
+                mediaCache.invalidateMetadata(id);
+                mediaCache.invalidateContent(file.getFileId());
+                if (file.getThumbnails() != null) {
+                    file.getThumbnails().values().forEach(mediaCache::invalidateContent);
+                }
+            }
             
             JsonObject result = Json.createObjectBuilder()
                 .add("message", "File deleted successfully")
@@ -438,12 +508,357 @@ public class MultimediaServlet extends HttpServlet {
                 out.print(result.toString());
                 out.flush();
             }
-            
+        
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
-
+    
+    /**
+     * Sends the content of a stored file, honoring Range and If-Range request headers.
+     * Without a usable Range header the whole file is sent with 200; a single range is
+     * sent as 206 with Content-Range; several ranges are sent as multipart/byteranges.
+     * The body is written without blocking by a {@link FileContentWriter}.
+     * 
+     * @param request servlet request
+     * @param response servlet response
+     * @param content The stored file being sent
+     * @param length The length of the content
+     * @param source Where the content is read from; closed once the response is sent
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendFileContent(HttpServletRequest request, HttpServletResponse response, StoredContent content,
+            long length, FileContentWriter.Source source) throws IOException {
+        String contentType = content.contentType;
+        
+        List<ByteRange> ranges = null;
+        if (ConditionalRequest.isIfRangeSatisfied(request, content.etag, content.lastModified)) {
+            ranges = ByteRange.parse(request.getHeader("Range"), length);
+        }
+        
+        if (ranges == null) {
+            // Full content
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            FileContentWriter.forFile(request, source, asyncRequests.getExecutor())
+                    .range(0, length - 1)
+                    .send();
+            return;
+        }
+        
+        if (ranges.isEmpty()) {
+            source.close();
+            response.setHeader("Content-Range", "bytes */" + length);
+            handleError(response, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Requested range not satisfiable");
+            return;
+        }
+        
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", range.toContentRange(length));
+            response.setContentLengthLong(range.getLength());
+            FileContentWriter.forFile(request, source, asyncRequests.getExecutor())
+                    .range(range.getStart(), range.getEnd())
+                    .send();
+            return;
+        }
+        
+        // Several ranges: multipart/byteranges body with a precomputed length
+        String boundary = new ObjectId().toHexString();
+        List<byte[]> partHeaders = new ArrayList<>();
+        long bodyLength = 0;
+        for (ByteRange range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + range.toContentRange(length) + "\r\n\r\n";
+            byte[] headerBytes = partHeader.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(headerBytes);
+            bodyLength += headerBytes.length + range.getLength();
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        bodyLength += closing.length;
+        
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(bodyLength);
+        
+        FileContentWriter.Body body =
+                FileContentWriter.forFile(request, source, asyncRequests.getExecutor());
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            body.bytes(partHeaders.get(i)).range(range.getStart(), range.getEnd());
+        }
+        body.bytes(closing).send();
+    }
+    
+    /**
+     * Looks up the metadata of a file being downloaded, in the media cache first
+     *
+     * @param id The multimedia ID
+     * @return The metadata, or null if the file does not exist
+     */
+    private MultimediaDto findDownloadMetadata(String id) {
+        MultimediaDto file = mediaCache != null ? mediaCache.getMetadata(id) : null;
+        if (file == null) {
+            file = multimediaDao.getFileMetadata(id);
+            if (file != null && mediaCache != null) {
+                mediaCache.putMetadata(file);
+            }
+        }
+        return file;
+    }
+    
+    /**
+     * Sends a stored file, from the media cache if it is there and from GridFS
+     * otherwise, after answering the conditional headers of the request.
+     * A file read from GridFS is copied to the cache in the background.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param content The stored file to send
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendStoredContent(HttpServletRequest request, HttpServletResponse response, StoredContent content)
+            throws IOException {
+        if (setContentHeaders(request, response, content)) {
+            return;
+        }
+        
+        MediaCache.CachedContent cached = mediaCache != null ? mediaCache.getContent(content.fileId) : null;
+        if (cached != null) {
+            FileChannel channel = null;
+            try {
+                channel = cached.open();
+            } catch (NoSuchFileException e) {
+                // Evicted and deleted since it was looked up
+                mediaCache.invalidateContent(content.fileId);
+            }
+            if (channel != null) {
+                sendFileContent(request, response, content, cached.getLength(), FileContentWriter.localFile(channel));
+                return;
+            }
+        }
+        
+        GridFSFile storedFile = multimediaDao.getStoredFile(content.fileId);
+        if (storedFile == null) {
+            // Drop the validators and caching headers of the missing content
+            response.reset();
+            response.setCharacterEncoding("UTF-8");
+            handleError(response, HttpServletResponse.SC_NOT_FOUND, "File content not found");
+            return;
+        }
+        
+        if (mediaCache != null) {
+            mediaCache.fillAsync(storedFile);
+        }
+        sendFileContent(request, response, content, storedFile.getLength(),
+                FileContentWriter.gridFs(multimediaDao, storedFile));
+    }
+    
+    /**
+     * Sends a download or thumbnail whose metadata and content are both in the media
+     * cache from the container thread, without going asynchronous, so that Tomcat
+     * writes the cached file to the socket with sendfile and neither MongoDB nor the
+     * request executor is involved. What sendfile cannot send (several ranges, HEAD
+     * requests, containers without sendfile) takes the asynchronous path. A client
+     * whose copy is current gets its 304 here as well.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @return true if the response has been prepared, false to process the request normally
+     */
+    private boolean sendCachedFile(HttpServletRequest request, HttpServletResponse response) {
+        if (mediaCache == null || !"GET".equals(request.getMethod())
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            return false;
+        }
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null || !pathInfo.matches("^/[^/]+/(download|thumbnail)$")) {
+            return false;
+        }
+        MultimediaDto file = mediaCache.getMetadata(pathInfo.substring(1, pathInfo.lastIndexOf("/")));
+        if (file == null) {
+            return false;
+        }
+        StoredContent content;
+        if (pathInfo.endsWith("/download")) {
+            content = StoredContent.original(file);
+        } else {
+            if (!"image".equals(file.getMediaType())) {
+                return false;
+            }
+            try {
+                content = StoredContent.thumbnail(file, parseThumbnailSize(request.getParameter("size")));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        MediaCache.CachedContent cached = mediaCache.getContent(content.fileId);
+        if (cached == null || cached.getLength() == 0) {
+            return false;
+        }
+        
+        long length = cached.getLength();
+        List<ByteRange> ranges = null;
+        if (ConditionalRequest.isIfRangeSatisfied(request, content.etag, content.lastModified)) {
+            ranges = ByteRange.parse(request.getHeader("Range"), length);
+        }
+        if (ranges != null && ranges.size() != 1) {
+            return false;
+        }
+        
+        if (setContentHeaders(request, response, content)) {
+            return true;
+        }
+        response.setContentType(content.contentType);
+        long start = 0;
+        long end = length;
+        if (ranges != null) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", range.toContentRange(length));
+            start = range.getStart();
+            end = range.getEnd() + 1;
+        }
+        response.setContentLengthLong(end - start);
+        request.setAttribute(SENDFILE_FILENAME, cached.getPath().toString());
+        request.setAttribute(SENDFILE_START, start);
+        request.setAttribute(SENDFILE_END, end);
+        return true;
+    }
+    
+    /**
+     * Sets the headers common to every download and thumbnail response, including
+     * the validators of the content, and evaluates the conditional headers of the
+     * request. Stored content never changes, so public files may be reused by
+     * browsers and proxies for a while without asking again.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param content The stored file being sent
+     * @return true if the client copy is current and 304 has been set
+     */
+    private boolean setContentHeaders(HttpServletRequest request, HttpServletResponse response,
+            StoredContent content) {
+        response.setHeader("Content-Disposition", content.disposition);
+        response.setHeader("Accept-Ranges", "bytes");
+        String cacheControl = content.isPublic ? "public, max-age=" + publicMaxAgeSeconds : "private, no-cache";
+        return setValidators(request, response, content.etag, content.lastModified, cacheControl);
+    }
+    
+    /**
+     * Sets the validators and the Cache-Control header of a response, and answers
+     * 304 Not Modified if the client already holds the current representation
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @param etag The entity tag of the representation
+     * @param lastModified The last modification date (may be null)
+     * @param cacheControl The Cache-Control directives
+     * @return true if 304 has been set and no body must be sent
+     */
+    private boolean setValidators(HttpServletRequest request, HttpServletResponse response, String etag,
+            Date lastModified, String cacheControl) {
+        response.setHeader("ETag", etag);
+        if (lastModified != null) {
+            response.setDateHeader("Last-Modified", lastModified.getTime());
+        }
+        response.setHeader("Cache-Control", cacheControl);
+        if (ConditionalRequest.isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Parses the size parameter of a thumbnail request
+     *
+     * @param value The raw size parameter (may be null)
+     * @return The requested size in pixels, 0 for the smallest thumbnail
+     * @throws IllegalArgumentException if the value is not a positive number
+     */
+    private static int parseThumbnailSize(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            int size = Integer.parseInt(value.trim());
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid thumbnail size: " + value);
+    }
+    
+    /**
+     * A stored file sent by a download or thumbnail request, with what its
+     * response headers are made of
+     */
+    private static final class StoredContent {
+        private final String fileId;
+        private final String contentType;
+        private final String disposition;
+        private final String etag;
+        private final Date lastModified;
+        private final boolean isPublic;
+        
+        private StoredContent(MultimediaDto file, String fileId, String contentType, String disposition,
+                String tag) {
+            this.fileId = fileId;
+            this.contentType = contentType;
+            this.disposition = disposition;
+            this.etag = ConditionalRequest.strongEtag(tag);
+            this.lastModified = file.getUploadDate();
+            this.isPublic = file.isIsPublic();
+        }
+        
+        /**
+         * The uploaded file itself, sent as an attachment
+         */
+        static StoredContent original(MultimediaDto file) {
+            String contentType = file.getContentType() != null ? file.getContentType() : "application/octet-stream";
+            return new StoredContent(file, file.getFileId(), contentType,
+                    "attachment; filename=\"" + file.getFilename() + "\"", contentTag(file));
+        }
+        
+        /**
+         * The smallest thumbnail of an image that is at least the requested size.
+         * When there is none (the image is smaller than that, or could not be
+         * resized) the image itself is sent.
+         *
+         * @param size Requested size in pixels, 0 for the smallest thumbnail
+         */
+        static StoredContent thumbnail(MultimediaDto file, int size) {
+            if (file.getThumbnails() != null) {
+                for (Map.Entry<String, String> thumbnail : file.getThumbnails().entrySet()) {
+                    if (Integer.parseInt(thumbnail.getKey()) >= size) {
+                        return new StoredContent(file, thumbnail.getValue(), ThumbnailStore.CONTENT_TYPE, "inline",
+                                contentTag(file) + "-" + thumbnail.getKey());
+                    }
+                }
+            }
+            String contentType = file.getContentType() != null ? file.getContentType() : "application/octet-stream";
+            return new StoredContent(file, file.getFileId(), contentType, "inline", contentTag(file));
+        }
+        
+        /**
+         * Identifies the content of a file: its SHA-256 when known, otherwise its
+         * GridFS file and upload date
+         */
+        private static String contentTag(MultimediaDto file) {
+            if (file.getContentHash() != null) {
+                return file.getContentHash();
+            }
+            long uploaded = file.getUploadDate() != null ? file.getUploadDate().getTime() : 0;
+            return file.getFileId() + "-" + Long.toHexString(uploaded);
+        }
+    }
+    
     /**
      * Determines the media type based on content type
      * 
@@ -472,7 +887,15 @@ public class MultimediaServlet extends HttpServlet {
      * @throws IOException If an I/O error occurs
      */
     private void handleError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        if (response.isCommitted()) {
+            // Part of a streamed body was already sent; the status can no longer change
+            System.err.println("Error after response was committed: " + message);
+            return;
+        }
+        // Drop whatever part of a streamed body is still buffered
+        response.resetBuffer();
         response.setStatus(statusCode);
+        response.setContentType("application/json");
         
         JsonObject errorResponse = Json.createObjectBuilder()
                 .add("error", message)
@@ -481,6 +904,9 @@ public class MultimediaServlet extends HttpServlet {
         try (PrintWriter out = response.getWriter()) {
             out.print(errorResponse.toString());
             out.flush();
+        } catch (IllegalStateException e) {
+            // The body was being streamed through the output stream
+            response.getOutputStream().write(errorResponse.toString().getBytes(StandardCharsets.UTF_8));
         }
     }
 }
@@ -0,0 +1,45 @@
+package com.multimedia.ms.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.fileupload.UploadContext;
+
+/**
+ * Exposes a Jakarta servlet request to the commons-fileupload streaming parser,
+ * whose own servlet adapter is written against the javax API
+ */
+final class MultipartRequestContext implements UploadContext {
+
+    private final HttpServletRequest request;
+
+    MultipartRequestContext(HttpServletRequest request) {
+        this.request = request;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return request.getCharacterEncoding();
+    }
+
+    @Override
+    public String getContentType() {
+        return request.getContentType();
+    }
+
+    @Override
+    @Deprecated
+    public int getContentLength() {
+        return request.getContentLength();
+    }
+
+    @Override
+    public long contentLength() {
+        return request.getContentLengthLong();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return request.getInputStream();
+    }
+}
@@ -1,12 +1,17 @@
 package com.multimedia.ms.controller;
 
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.dao.MusicianExistenceIndex;
+import com.multimedia.ms.dao.MusicianLeaderboard;
 import com.multimedia.ms.dao.MusicianProfileDao;
+import com.multimedia.ms.dao.MusicianSearchIndex;
+import com.multimedia.ms.model.Database;
 import com.multimedia.ms.model.MusicianProfileDto;
+import com.multimedia.ms.util.Pagination;
 import jakarta.json.Json;
-import jakarta.json.JsonArrayBuilder;
 import jakarta.json.JsonObject;
-import jakarta.json.JsonObjectBuilder;
 import jakarta.json.JsonReader;
+import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
@@ -14,19 +19,47 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import org.bson.types.ObjectId;
 
 /**
  * Servlet controller for musician profiles
  */
-@WebServlet(name = "ProfileServlet", urlPatterns = {"/profiles/*"})
+@WebServlet(name = "ProfileServlet", urlPatterns = {"/profiles/*"}, asyncSupported = true)
 public class ProfileServlet extends HttpServlet {
     
-    private final MusicianProfileDao profileDao;
+    private AsyncRequests asyncRequests;
+    private MusicianProfileDao profileDao;
+    private MusicianExistenceIndex musicianIndex;
+    private MusicianLeaderboard leaderboard;
+    private MusicianSearchIndex searchIndex;
     
-    public ProfileServlet() {
-        this.profileDao = new MusicianProfileDao();
+    @Override
+    public void init() throws ServletException {
+        Database database = ApplicationContextListener.getDatabase(getServletContext());
+        this.profileDao = new MusicianProfileDao(database);
+        this.musicianIndex = ApplicationContextListener.getMusicianIndex(getServletContext());
+        this.leaderboard = ApplicationContextListener.getLeaderboard(getServletContext());
+        this.searchIndex = ApplicationContextListener.getSearchIndex(getServletContext());
+        this.asyncRequests = AsyncRequests.forContext(getServletContext());
+    }
+
+    /**
+     * Runs every request asynchronously: the servlet logic and its DAO calls
+     * execute on the request executor instead of a container thread
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        asyncRequests.dispatch(request, response, super::service);
     }
 
     /**
@@ -47,22 +80,73 @@ public class ProfileServlet extends HttpServlet {
         
         try {
             if (pathInfo == null || pathInfo.equals("/")) {
-                // Get all profiles
-                List<MusicianProfileDto> profiles = profileDao.getAllProfiles();
-                JsonArrayBuilder profilesArray = Json.createArrayBuilder();
+                // Get profiles page by page: /profiles?limit=50&cursor=xxx
+                int limit = Pagination.parseLimit(request.getParameter("limit"));
+                ObjectId after = Pagination.decodeCursor(request.getParameter("cursor"));
                 
-                for (MusicianProfileDto profile : profiles) {
-                    JsonObjectBuilder profileJson = buildProfileJson(profile);
-                    profilesArray.add(profileJson);
+                // Profiles are written to the response as the database cursor yields them
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    generator.writeStartArray("profiles");
+                    String nextCursor = profileDao.forEachProfile(after, limit,
+                            profile -> JsonViews.writeProfile(generator, profile));
+                    generator.writeEnd();
+                    JsonViews.writeNextCursor(generator, nextCursor);
+                    generator.writeEnd();
                 }
                 
-                JsonObject result = Json.createObjectBuilder()
-                    .add("profiles", profilesArray)
-                    .build();
+            } else if (pathInfo.equals("/top")) {
+                // Highest ranked profiles, from memory: /profiles/top?genre={genre}&limit=10
+                String genre = request.getParameter("genre");
+                if (genre != null && genre.isEmpty()) {
+                    genre = null;
+                }
+                int limit = Math.min(Pagination.parseLimit(request.getParameter("limit")), leaderboard.getMaxSize());
                 
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(result.toString());
-                    out.flush();
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    if (genre != null) {
+                        generator.write("genre", genre);
+                    }
+                    generator.writeStartArray("profiles");
+                    for (MusicianProfileDto profile : leaderboard.top(genre, limit)) {
+                        JsonViews.writeProfile(generator, profile);
+                    }
+                    generator.writeEnd();
+                    generator.writeEnd();
+                }
+                
+            } else if (pathInfo.equals("/search")) {
+                // Full-text search ranked by relevance: /profiles/search?q=jazz+madrid&limit=20&cursor=xxx
+                String query = request.getParameter("q");
+                if (query == null || query.trim().isEmpty()) {
+                    handleError(response, HttpServletResponse.SC_BAD_REQUEST, "Parameter 'q' is required");
+                    return;
+                }
+                int limit = Pagination.parseLimit(request.getParameter("limit"));
+                Pagination.RankedCursor after = Pagination.decodeRankedCursor(request.getParameter("cursor"));
+                
+                MusicianSearchIndex.SearchPage page = searchIndex.search(query, after, limit);
+                List<String> ids = new ArrayList<>();
+                for (MusicianSearchIndex.Hit hit : page.getHits()) {
+                    ids.add(hit.getId());
+                }
+                Map<String, MusicianProfileDto> profiles = profileDao.getProfilesByIds(ids);
+                
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    generator.writeStartArray("profiles");
+                    for (MusicianSearchIndex.Hit hit : page.getHits()) {
+                        // Deleted by another instance since the index was last rebuilt
+                        MusicianProfileDto profile = profiles.get(hit.getId());
+                        if (profile != null) {
+                            JsonViews.writeSearchHit(generator, profile, hit.getScore());
+                        }
+                    }
+                    generator.writeEnd();
+                    generator.write("total", page.getTotal());
+                    JsonViews.writeNextCursor(generator, page.getNextCursor());
+                    generator.writeEnd();
                 }
                 
             } else if (pathInfo.matches("^/[^/]+$")) {
@@ -75,16 +159,15 @@ public class ProfileServlet extends HttpServlet {
                     return;
                 }
                 
-                JsonObjectBuilder profileJson = buildProfileJson(profile);
-                
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(profileJson.build().toString());
-                    out.flush();
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    JsonViews.writeProfile(generator, profile);
                 }
                 
             } else {
                 handleError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
             }
+        } catch (IllegalArgumentException e) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
@@ -138,6 +221,9 @@ public class ProfileServlet extends HttpServlet {
             
             // Save profile
             MusicianProfileDto savedProfile = profileDao.createProfile(newProfile);
+            musicianIndex.add(savedProfile.getId());
+            leaderboard.update(savedProfile);
+            searchIndex.update(savedProfile);
             
             if (savedProfile != null) {
                 JsonObject jsonResult = Json.createObjectBuilder()
@@ -223,8 +309,12 @@ public class ProfileServlet extends HttpServlet {
                 profile.setBiography(data.getString("bio"));
             }
             
-            // Update profile
-            profileDao.updateProfile(profile);
+            // Update profile; a change of genre moves it between leaderboards
+            MusicianProfileDto updatedProfile = profileDao.updateProfile(profile);
+            if (updatedProfile != null) {
+                leaderboard.update(updatedProfile);
+                searchIndex.update(updatedProfile);
+            }
             
             JsonObject result = Json.createObjectBuilder()
                 .add("id", profile.getId())
@@ -274,6 +364,9 @@ public class ProfileServlet extends HttpServlet {
             
             // Delete profile
             profileDao.deleteProfile(id);
+            musicianIndex.remove(id);
+            leaderboard.remove(id);
+            searchIndex.remove(id);
             
             JsonObject result = Json.createObjectBuilder()
                 .add("message", "Musician profile deleted successfully")
@@ -289,67 +382,6 @@ public class ProfileServlet extends HttpServlet {
         }
     }
     
-    /**
-     * Build a JSON object from a musician profile
-     * 
-     * @param profile Musician profile DTO
-     * @return JsonObjectBuilder with profile data
-     */
-    private JsonObjectBuilder buildProfileJson(MusicianProfileDto profile) {
-        JsonObjectBuilder builder = Json.createObjectBuilder()
-            .add("id", profile.getId())
-            .add("userId", profile.getUserId())
-            .add("artisticName", profile.getName());
-            
-        // Añadir imageUrl si está disponible
-        if (profile.getImageUrl() != null && !profile.getImageUrl().isEmpty()) {
-            builder.add("imageUrl", profile.getImageUrl());
-        } else {
-            builder.addNull("imageUrl");
-        }
-        
-        // Add genres
-        if (profile.getGenres() != null && !profile.getGenres().isEmpty()) {
-            builder.add("genre", profile.getGenres().get(0)); // Use first genre for compatibility
-            
-            JsonArrayBuilder genresArray = Json.createArrayBuilder();
-            for (String genre : profile.getGenres()) {
-                genresArray.add(genre);
-            }
-            builder.add("genres", genresArray);
-        } else {
-            builder.addNull("genre");
-            builder.add("genres", Json.createArrayBuilder());
-        }
-        
-        // Add instruments if available
-        if (profile.getInstruments() != null && !profile.getInstruments().isEmpty()) {
-            JsonArrayBuilder instrumentsArray = Json.createArrayBuilder();
-            for (String instrument : profile.getInstruments()) {
-                instrumentsArray.add(instrument);
-            }
-            builder.add("instruments", instrumentsArray);
-        } else {
-            builder.add("instruments", Json.createArrayBuilder());
-        }
-        
-        if (profile.getBiography() != null) {
-            builder.add("bio", profile.getBiography());
-        } else {
-            builder.addNull("bio");
-        }
-        
-        // Add ratings information
-        builder.add("averageRating", profile.getAverageRating());
-        builder.add("totalRatings", profile.getTotalRatings());
-        
-        if (profile.getCreatedAt() != null) {
-            builder.add("createdAt", profile.getCreatedAt().getTime());
-        }
-        
-        return builder;
-    }
-    
     /**
      * Validate required fields in JSON data
      * 
@@ -374,7 +406,15 @@ public class ProfileServlet extends HttpServlet {
      * @throws IOException If an I/O error occurs
      */
     private void handleError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        if (response.isCommitted()) {
+            // Part of a streamed body was already sent; the status can no longer change
+            System.err.println("Error after response was committed: " + message);
+            return;
+        }
+        // Drop whatever part of a streamed body is still buffered
+        response.resetBuffer();
         response.setStatus(statusCode);
+        response.setContentType("application/json");
         
         JsonObject errorResponse = Json.createObjectBuilder()
                 .add("error", message)
@@ -383,6 +423,9 @@ public class ProfileServlet extends HttpServlet {
         try (PrintWriter out = response.getWriter()) {
             out.print(errorResponse.toString());
             out.flush();
+        } catch (IllegalStateException e) {
+            // The body was being streamed through the output stream
+            response.getOutputStream().write(errorResponse.toString().getBytes(StandardCharsets.UTF_8));
         }
     }
 }
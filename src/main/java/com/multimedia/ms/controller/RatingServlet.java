@@ -1,35 +1,78 @@
 package com.multimedia.ms.controller;
 
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.dao.MusicianProfileDao;
 import com.multimedia.ms.dao.RatingDao;
+import com.multimedia.ms.model.Database;
 import com.multimedia.ms.model.RatingDto;
+import com.multimedia.ms.model.RatingStatsDto;
+import com.multimedia.ms.util.Pagination;
+import com.multimedia.ms.util.Validator;
 import jakarta.json.Json;
-import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonException;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonObjectBuilder;
 import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonParser;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.NoSuchElementException;
+import org.bson.types.ObjectId;
 
 /**
  * Servlet controller for ratings
  */
-@WebServlet(name = "RatingServlet", urlPatterns = {"/ratings/*"})
+@WebServlet(name = "RatingServlet", urlPatterns = {"/ratings/*"}, asyncSupported = true)
 public class RatingServlet extends HttpServlet {
     
-    private final RatingDao ratingDao;
+    // Newline-delimited JSON, one rating per line, accepted by /ratings/batch
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
     
-    public RatingServlet() {
-        this.ratingDao = new RatingDao();
+    private AsyncRequests asyncRequests;
+    private RatingDao ratingDao;
+    private int importBatchSize;
+    
+    @Override
+    public void init() throws ServletException {
+        Database database = ApplicationContextListener.getDatabase(getServletContext());
+        MusicianProfileDao profileDao = new MusicianProfileDao(database);
+        profileDao.setRatingStatsListener(ApplicationContextListener.getLeaderboard(getServletContext())::update);
+        this.ratingDao = new RatingDao(database, profileDao);
+        this.asyncRequests = AsyncRequests.forContext(getServletContext());
+        this.importBatchSize = Math.max(1, database.getIntConfigValue("RATING_IMPORT_BATCH_SIZE", 1000));
     }
-
+    
     /**
-     * Handles the HTTP GET method for getting ratings
+     * Runs every request asynchronously: the servlet logic and its DAO calls
+     * execute on the request executor instead of a container thread
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        asyncRequests.dispatch(request, response, super::service);
+    }
+    
+    /**
+     * Handles the HTTP GET method for getting ratings and rating statistics
      *
      * @param request servlet request
      * @param response servlet response
@@ -48,50 +91,104 @@ public class RatingServlet extends HttpServlet {
             if (pathInfo == null || pathInfo.equals("/")) {
                 // Get ratings for musician or all ratings if musicianId is not provided
                 String musicianId = request.getParameter("musicianId");
-                List<RatingDto> ratings;
-                JsonArrayBuilder ratingsArray = Json.createArrayBuilder();
-                double avgRating = 0;
-                
-                if (musicianId != null && !musicianId.isEmpty()) {
-                    // Si se proporciona musicianId, filtrar por este
-                    ratings = ratingDao.getRatingsByMusicianId(musicianId);
-                } else {
-                    // Si no se proporciona musicianId, obtener todas las valoraciones
-                    try {
-                        ratings = ratingDao.getAllRatings();
-                    } catch (Exception e) {
-                        handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error retrieving all ratings: " + e.toString());
-                        e.printStackTrace();
-                        return;
-                    }
+                if (musicianId != null && musicianId.isEmpty()) {
+                    musicianId = null;
                 }
+                if (musicianId != null) {
+                    Validator.validateObjectId(musicianId, "musicianId");
+                }
+                int limit = Pagination.parseLimit(request.getParameter("limit"));
+                ObjectId after = Pagination.decodeCursor(request.getParameter("cursor"));
+                
+                boolean statsOnly = Boolean.parseBoolean(request.getParameter("statsOnly"));
                 
-                if (!ratings.isEmpty()) {
-                    double totalRating = 0;
-                    for (RatingDto rating : ratings) {
-                        JsonObjectBuilder ratingJson = buildRatingJson(rating);
-                        ratingsArray.add(ratingJson);
-                        totalRating += rating.getRating();
+                // Statistics cover all matching ratings, not just this page. A musician's
+                // are read from the profile; the global ones take a scan of the ratings
+                // index, so pages of all ratings leave them out unless only they are asked for
+                RatingStatsDto stats = null;
+                if (musicianId != null) {
+                    stats = ratingDao.getMusicianRatingStats(musicianId);
+                    if (stats == null) {
+                        stats = new RatingStatsDto(0, 0.0);
                     }
-                    avgRating = totalRating / ratings.size();
+                } else if (statsOnly) {
+                    stats = ratingDao.aggregateRatingStats(null);
                 }
                 
-                JsonObjectBuilder resultBuilder = Json.createObjectBuilder()
-                    .add("ratings", ratingsArray)
-                    .add("averageRating", avgRating)
-                    .add("count", ratings.size());
+                // Ratings are written to the response as the database cursor yields them
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    String nextCursor = null;
+                    if (!statsOnly) {
+                        generator.writeStartArray("ratings");
+                        nextCursor = ratingDao.forEachRating(musicianId, after, limit,
+                                rating -> JsonViews.writeRating(generator, rating));
+                        generator.writeEnd();
+                    }
                     
-                if (musicianId != null && !musicianId.isEmpty()) {
-                    resultBuilder.add("musicianId", musicianId);
+                    if (stats != null) {
+                        generator.write("averageRating", stats.getAverageRating());
+                        generator.write("count", stats.getCount());
+                    }
+                    if (musicianId != null) {
+                        generator.write("musicianId", musicianId);
+                    }
+                    if (!statsOnly) {
+                        JsonViews.writeNextCursor(generator, nextCursor);
+                    }
+                    generator.writeEnd();
                 }
+            
+            } else if (pathInfo.equals("/stats")) {
+                // Rating statistics: /ratings/stats?musicianId={id}&detailed=true
+                String musicianId = request.getParameter("musicianId");
+                if (musicianId != null && musicianId.isEmpty()) {
+                    musicianId = null;
+                }
+                if (musicianId != null) {
+                    Validator.validateObjectId(musicianId, "musicianId");
+                }
+                boolean detailed = Boolean.parseBoolean(request.getParameter("detailed"));
                 
-                JsonObject result = resultBuilder.build();
-                
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(result.toString());
-                    out.flush();
+                RatingStatsDto stats;
+                if (musicianId == null) {
+                    // No document holds the global statistics, so they are always aggregated
+                    stats = ratingDao.aggregateRatingStats(null);
+                    detailed = true;
+                } else {
+                    // Count, average and histogram are kept on the profile: one lookup however many ratings
+                    stats = ratingDao.getMusicianRatingStats(musicianId);
+                    if (stats == null) {
+                        handleError(response, HttpServletResponse.SC_NOT_FOUND, "Musician profile not found");
+                        return;
+                    }
+                    if (detailed) {
+                        // The extremes and the spread are not stored; they take the covered aggregation
+                        RatingStatsDto aggregated = ratingDao.aggregateRatingStats(musicianId);
+                        stats.setMinRating(aggregated.getMinRating());
+                        stats.setMaxRating(aggregated.getMaxRating());
+                        stats.setStandardDeviation(aggregated.getStandardDeviation());
+                    }
                 }
                 
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    generator.writeStartObject();
+                    if (musicianId != null) {
+                        generator.write("musicianId", musicianId);
+                    }
+                    generator.write("averageRating", stats.getAverageRating());
+                    generator.write("count", stats.getCount());
+                    if (detailed && stats.getCount() > 0) {
+                        generator.write("minRating", stats.getMinRating());
+                        generator.write("maxRating", stats.getMaxRating());
+                        generator.write("standardDeviation", stats.getStandardDeviation());
+                    }
+                    if (stats.getHistogram() != null) {
+                        JsonViews.writeRatingHistogram(generator, "histogram", stats.getHistogram());
+                    }
+                    generator.writeEnd();
+                }
+            
             } else if (pathInfo.matches("^/[^/]+$")) {
                 // Get rating by ID: /ratings/{id}
                 String id = pathInfo.substring(1);
@@ -102,23 +199,25 @@ public class RatingServlet extends HttpServlet {
                     return;
                 }
                 
-                JsonObjectBuilder ratingJson = buildRatingJson(rating);
-                
-                try (PrintWriter out = response.getWriter()) {
-                    out.print(ratingJson.build().toString());
-                    out.flush();
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    JsonViews.writeRating(generator, rating);
                 }
-                
+            
             } else {
                 handleError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
             }
+        } catch (IllegalArgumentException e) {
+            handleError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
-
+    
     /**
-     * Handles the HTTP POST method for creating new ratings
+     * Handles the HTTP POST method for:
+     * - Creating new ratings
+     * - Importing ratings in bulk (/ratings/batch)
+     * - Rebuilding the rating statistics of musicians (/ratings/rebuild-stats)
      *
      * @param request servlet request
      * @param response servlet response
@@ -129,9 +228,23 @@ public class RatingServlet extends HttpServlet {
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         
+        String pathInfo = request.getPathInfo();
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
         
+        if ("/rebuild-stats".equals(pathInfo)) {
+            rebuildStats(request, response);
+            return;
+        }
+        if ("/batch".equals(pathInfo)) {
+            importRatings(request, response);
+            return;
+        }
+        if (pathInfo != null && !pathInfo.equals("/")) {
+            handleError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+            return;
+        }
+        
         try {
             // Read JSON data
             JsonObject data;
@@ -153,30 +266,13 @@ public class RatingServlet extends HttpServlet {
                 return;
             }
             
-            // Check if user already rated this musician
-            RatingDto existingRating = ratingDao.getRatingByUserAndMusician(musicianId, userId);
             String comment = data.containsKey("comment") ? data.getString("comment") : null;
             
-            String ratingId;
-            String message;
-            
-            if (existingRating != null) {
-                // Update existing rating
-                existingRating.setRating(ratingValue);
-                existingRating.setComment(comment);
-                // Since there's no explicit updateRating method, we'll use the delete and add pattern
-                ratingDao.deleteRating(existingRating.getId());
-                ratingDao.addRating(existingRating);
-                ratingId = existingRating.getId();
-                message = "Rating updated successfully";
-            } else {
-                // Create new rating
-                RatingDto newRating = new RatingDto(musicianId, userId, ratingValue, comment);
-                
-                RatingDto createdRating = ratingDao.addRating(newRating);
-                ratingId = createdRating.getId();
-                message = "Rating created successfully";
-            }
+            // Create the rating, or replace the user's existing rating of this musician
+            RatingDao.UpsertResult saved = ratingDao.upsertRating(new RatingDto(musicianId, userId, ratingValue, comment));
+            String ratingId = saved.getId();
+            String message = RatingDao.UpsertResult.CREATED.equals(saved.getStatus())
+                    ? "Rating created successfully" : "Rating updated successfully";
             
             JsonObject result = Json.createObjectBuilder()
                 .add("id", ratingId)
@@ -187,7 +283,7 @@ public class RatingServlet extends HttpServlet {
                 out.print(result.toString());
                 out.flush();
             }
-            
+        
         } catch (IllegalArgumentException e) {
             handleError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
         } catch (Exception e) {
@@ -246,9 +342,11 @@ public class RatingServlet extends HttpServlet {
                 rating.setComment(data.getString("comment"));
             }
             
-            // Update rating by deleting and re-adding
-            ratingDao.deleteRating(rating.getId());
-            ratingDao.addRating(rating);
+            // Update rating in place; the musician statistics get the difference only
+            if (!ratingDao.updateRating(rating)) {
+                handleError(response, HttpServletResponse.SC_NOT_FOUND, "Rating not found");
+                return;
+            }
             
             JsonObject result = Json.createObjectBuilder()
                 .add("id", rating.getId())
@@ -259,7 +357,7 @@ public class RatingServlet extends HttpServlet {
                 out.print(result.toString());
                 out.flush();
             }
-            
+        
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
@@ -307,36 +405,220 @@ public class RatingServlet extends HttpServlet {
                 out.print(result.toString());
                 out.flush();
             }
+        
+        } catch (Exception e) {
+            handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    /**
+     * Rebuilds rating statistics from the stored ratings, for one musician
+     * (?musicianId=xxx) or for all of them
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws IOException if an I/O error occurs
+     */
+    private void rebuildStats(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            String musicianId = request.getParameter("musicianId");
+            JsonObjectBuilder result = Json.createObjectBuilder();
+            
+            if (musicianId != null && !musicianId.isEmpty()) {
+                if (!ratingDao.rebuildRatingStats(musicianId)) {
+                    handleError(response, HttpServletResponse.SC_NOT_FOUND, "Musician profile not found");
+                    return;
+                }
+                result.add("musicianId", musicianId);
+            } else {
+                result.add("rebuilt", ratingDao.rebuildAllRatingStats());
+                // Profiles reset to zero are not reported one by one
+                ApplicationContextListener.getLeaderboard(getServletContext()).rebuild();
+            }
+            result.add("message", "Rating statistics rebuilt successfully");
             
+            try (PrintWriter out = response.getWriter()) {
+                out.print(result.build().toString());
+                out.flush();
+            }
         } catch (Exception e) {
             handleError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
     
     /**
-     * Build a JSON object from a rating
-     * 
-     * @param rating Rating DTO
-     * @return JsonObjectBuilder with rating data
+     * Imports ratings in bulk, as a JSON array or as NDJSON (one rating per line),
+     * creating or replacing the rating of each user for each musician. The body is
+     * read and stored RATING_IMPORT_BATCH_SIZE ratings at a time, and the outcome of
+     * each batch is streamed back before the next one is read. An invalid rating
+     * fails on its own; malformed JSON ends the import after the ratings read so far.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws IOException if an I/O error occurs
+     */
+    private void importRatings(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean ndjson = request.getContentType() != null
+                && request.getContentType().toLowerCase().startsWith(NDJSON_CONTENT_TYPE);
+        ImportProgress progress = new ImportProgress();
+        // A large import outlasts the request timeout; a stalled connection fails the read instead
+        request.getAsyncContext().setTimeout(0);
+        
+        try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+            generator.writeStartObject();
+            generator.writeStartArray("results");
+            String error = null;
+            try {
+                if (ndjson) {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.isBlank()) {
+                            continue;
+                        }
+                        try (JsonReader jsonReader = Json.createReader(new StringReader(line))) {
+                            progress.add(jsonReader.readValue(), generator);
+                        } catch (JsonException e) {
+                            progress.addFailed(e.getMessage(), generator);
+                        }
+                    }
+                } else {
+                    try (JsonParser parser = Json.createParser(request.getInputStream())) {
+                        if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) {
+                            throw new JsonException("Expected a JSON array of ratings");
+                        }
+                        while (parser.next() != JsonParser.Event.END_ARRAY) {
+                            progress.add(parser.getValue(), generator);
+                        }
+                    }
+                }
+                progress.flush(generator);
+            } catch (JsonException | NoSuchElementException e) {
+                progress.flush(generator);
+                error = "Malformed JSON: " + e.getMessage();
+            } catch (RuntimeException e) {
+                // The batch being written may be partly stored
+                error = e.getMessage();
+            }
+            generator.writeEnd();
+            
+            generator.write("created", progress.created);
+            generator.write("updated", progress.updated);
+            generator.write("skipped", progress.skipped);
+            generator.write("failed", progress.failed);
+            if (error != null) {
+                generator.write("error", error);
+            }
+            generator.writeEnd();
+        }
+    }
+    
+    /**
+     * Ratings of an import read since the last stored batch, and the totals so far
      */
-    private JsonObjectBuilder buildRatingJson(RatingDto rating) {
-        JsonObjectBuilder builder = Json.createObjectBuilder()
-            .add("id", rating.getId())
-            .add("musicianId", rating.getMusicianId())
-            .add("userId", rating.getUserId())
-            .add("rating", rating.getRating());
+    private final class ImportProgress {
+        private final List<RatingDto> batch = new ArrayList<>();
+        // Position in the batch of each item read, or -1 for items that failed validation
+        private final List<Integer> positions = new ArrayList<>();
+        private final List<String> invalid = new ArrayList<>();
+        private int index;
+        private int created;
+        private int updated;
+        private int skipped;
+        private int failed;
         
-        if (rating.getComment() != null) {
-            builder.add("comment", rating.getComment());
-        } else {
-            builder.addNull("comment");
+        void add(JsonValue value, JsonGenerator generator) {
+            try {
+                batch.add(parseRating(value));
+                positions.add(batch.size() - 1);
+                invalid.add(null);
+            } catch (IllegalArgumentException | ClassCastException e) {
+                positions.add(-1);
+                invalid.add(e.getMessage() != null ? e.getMessage() : "Invalid rating");
+            }
+            if (positions.size() >= importBatchSize) {
+                flush(generator);
+            }
+        }
+        
+        void addFailed(String error, JsonGenerator generator) {
+            positions.add(-1);
+            invalid.add(error);
+            if (positions.size() >= importBatchSize) {
+                flush(generator);
+            }
         }
         
-        if (rating.getCreatedAt() != null) {
-            builder.add("createdAt", rating.getCreatedAt().getTime());
+        void flush(JsonGenerator generator) {
+            if (positions.isEmpty()) {
+                return;
+            }
+            List<RatingDao.UpsertResult> results = batch.isEmpty()
+                    ? Collections.emptyList() : ratingDao.upsertRatings(batch);
+            for (int i = 0; i < positions.size(); i++) {
+                generator.writeStartObject();
+                generator.write("index", index++);
+                int position = positions.get(i);
+                if (position < 0) {
+                    generator.write("status", RatingDao.UpsertResult.FAILED);
+                    generator.write("error", invalid.get(i));
+                    failed++;
+                } else {
+                    RatingDao.UpsertResult result = results.get(position);
+                    generator.write("status", result.getStatus());
+                    if (result.getId() != null) {
+                        generator.write("id", result.getId());
+                    }
+                    if (result.getError() != null) {
+                        generator.write("error", result.getError());
+                    }
+                    count(result.getStatus());
+                }
+                generator.writeEnd();
+            }
+            generator.flush();
+            batch.clear();
+            positions.clear();
+            invalid.clear();
         }
         
-        return builder;
+        private void count(String status) {
+            switch (status) {
+                case RatingDao.UpsertResult.CREATED:
+                    created++;
+                    break;
+                case RatingDao.UpsertResult.UPDATED:
+                    updated++;
+                    break;
+                case RatingDao.UpsertResult.SKIPPED:
+                    skipped++;
+                    break;
+                default:
+                    failed++;
+            }
+        }
+    }
+    
+    /**
+     * Validate one rating of an import
+     *
+     * @param value The rating as read
+     * @return The rating
+     * @throws IllegalArgumentException if a field is missing or invalid
+     */
+    private RatingDto parseRating(JsonValue value) {
+        if (value.getValueType() != JsonValue.ValueType.OBJECT) {
+            throw new IllegalArgumentException("Rating must be a JSON object");
+        }
+        JsonObject data = value.asJsonObject();
+        validateFields(data, new String[] {"musicianId", "userId", "rating"});
+        int ratingValue = data.getInt("rating");
+        if (ratingValue < 1 || ratingValue > 5) {
+            throw new IllegalArgumentException("Rating must be between 1 and 5");
+        }
+        String comment = data.containsKey("comment") && !data.isNull("comment") ? data.getString("comment") : null;
+        return new RatingDto(data.getString("musicianId"), data.getString("userId"), ratingValue, comment);
     }
     
     /**
@@ -363,7 +645,15 @@ public class RatingServlet extends HttpServlet {
      * @throws IOException If an I/O error occurs
      */
     private void handleError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        if (response.isCommitted()) {
+            // Part of a streamed body was already sent; the status can no longer change
+            System.err.println("Error after response was committed: " + message);
+            return;
+        }
+        // Drop whatever part of a streamed body is still buffered
+        response.resetBuffer();
         response.setStatus(statusCode);
+        response.setContentType("application/json");
         
         JsonObject errorResponse = Json.createObjectBuilder()
                 .add("error", message)
@@ -372,6 +662,9 @@ public class RatingServlet extends HttpServlet {
         try (PrintWriter out = response.getWriter()) {
             out.print(errorResponse.toString());
             out.flush();
+        } catch (IllegalStateException e) {
+            // The body was being streamed through the output stream
+            response.getOutputStream().write(errorResponse.toString().getBytes(StandardCharsets.UTF_8));
         }
     }
 }
@@ -0,0 +1,388 @@
+package com.multimedia.ms.controller;
+
+import com.multimedia.ms.ApplicationContextListener;
+import com.multimedia.ms.dao.MusicianExistenceIndex;
+import com.multimedia.ms.dao.UploadSessionDao;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.MultimediaDto;
+import com.multimedia.ms.model.UploadSessionDto;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Servlet controller for resumable uploads.
+ *
+ * A client creates an upload session with the file metadata and size, sends the
+ * content in any number of PATCH requests, each starting at the offset the server
+ * has stored (Upload-Offset header), and completes the session once all the
+ * content has been received. After a dropped connection the client asks for the
+ * stored offset and continues from there.
+ */
+@WebServlet(name = "UploadSessionServlet", urlPatterns = {"/multimedia/uploads/*"}, asyncSupported = true)
+public class UploadSessionServlet extends HttpServlet {
+    
+    private static final Logger LOGGER = Logger.getLogger(UploadSessionServlet.class.getName());
+    
+    static final String OFFSET_HEADER = "Upload-Offset";
+    static final String LENGTH_HEADER = "Upload-Length";
+    static final String CONTENT_TYPE = "application/offset+octet-stream";
+    
+    private AsyncRequests asyncRequests;
+    private UploadSessionDao uploadSessionDao;
+    private MusicianExistenceIndex musicianIndex;
+    private Set<String> allowedFileTypes;
+    private long maxFileSize;
+    
+    @Override
+    public void init() throws ServletException {
+        Database database = ApplicationContextListener.getDatabase(getServletContext());
+        this.uploadSessionDao = new UploadSessionDao(database);
+        this.musicianIndex = ApplicationContextListener.getMusicianIndex(getServletContext());
+        
+        // Same file types as the single-request uploads
+        String configuredTypes = database.getConfigValue("ALLOWED_FILE_TYPES", "mp3,mp4,jpg,jpeg,png");
+        this.allowedFileTypes = new HashSet<>(Arrays.asList(configuredTypes.toLowerCase().split(",")));
+        
+        // 2 GB unless configured
+        this.maxFileSize = Long.parseLong(database.getConfigValue("MAX_RESUMABLE_FILE_SIZE", "2147483648"));
+        this.asyncRequests = AsyncRequests.forContext(getServletContext());
+    }
+    
+    /**
+     * Runs every request asynchronously, routing PATCH, which HttpServlet does not
+     * know about, to {@link #doPatch}
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        asyncRequests.dispatch(request, response, (req, resp) -> {
+            if ("PATCH".equals(req.getMethod())) {
+                doPatch(req, resp);
+            } else {
+                super.service(req, resp);
+            }
+        });
+    }
+    
+    /**
+     * Handles the HTTP GET method for the progress of an upload session
+     * (/multimedia/uploads/{id}). HEAD returns the same headers without a body.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        
+        String id = sessionId(request.getPathInfo());
+        if (id == null) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+            return;
+        }
+        
+        try {
+            UploadSessionDto session = uploadSessionDao.getSession(id);
+            if (session == null) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+                return;
+            }
+            
+            writeSession(response, session);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error reading upload " + id, e);
+            AsyncRequests.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    /**
+     * Handles the HTTP POST method for:
+     * - Creating an upload session (/multimedia/uploads)
+     * - Completing an upload session (/multimedia/uploads/{id}/complete)
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null || pathInfo.equals("/")) {
+            createSession(request, response);
+        } else if (pathInfo.matches("^/[0-9a-fA-F]{24}/complete$")) {
+            completeSession(response, pathInfo.substring(1, pathInfo.lastIndexOf("/")));
+        } else {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+        }
+    }
+    
+    private void createSession(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            JsonObject data;
+            try (JsonReader jsonReader = Json.createReader(request.getInputStream())) {
+                data = jsonReader.readObject();
+            }
+            
+            String musicianId = data.getString("musicianId", null);
+            String title = data.getString("title", null);
+            String filename = data.getString("filename", null);
+            if (musicianId == null || musicianId.isEmpty()) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Musician ID is required");
+                return;
+            }
+            if (title == null || title.isEmpty()) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Title is required");
+                return;
+            }
+            if (filename == null || filename.isEmpty()) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Filename is required");
+                return;
+            }
+            if (!data.containsKey("length") || data.getJsonNumber("length").longValue() < 0) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "File length is required");
+                return;
+            }
+            
+            long length = data.getJsonNumber("length").longValue();
+            if (length > maxFileSize) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        "File size exceeds maximum allowed (" + (maxFileSize / 1024 / 1024) + "MB)");
+                return;
+            }
+            String extension = FilenameUtils.getExtension(filename).toLowerCase();
+            if (!allowedFileTypes.contains(extension)) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+                        "File type not allowed. Allowed types: " + String.join(", ", allowedFileTypes));
+                return;
+            }
+            if (!musicianIndex.exists(musicianId)) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Musician profile not found");
+                return;
+            }
+            
+            UploadSessionDto session = new UploadSessionDto();
+            session.setMusicianId(musicianId);
+            session.setTitle(title);
+            session.setDescription(data.getString("description", ""));
+            session.setFilename(filename);
+            session.setContentType(data.getString("contentType", "application/octet-stream"));
+            session.setIsPublic(data.getBoolean("isPublic", true));
+            session.setLength(length);
+            
+            UploadSessionDto created = uploadSessionDao.createSession(session);
+            response.setStatus(HttpServletResponse.SC_CREATED);
+            response.setHeader("Location", request.getContextPath() + "/multimedia/uploads/" + created.getId());
+            writeSession(response, created);
+        } catch (ClassCastException | JsonException e) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid upload request: " + e.getMessage());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error creating upload session", e);
+            AsyncRequests.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    private void completeSession(HttpServletResponse response, String id) throws IOException {
+        try {
+            UploadSessionDto session = uploadSessionDao.getSession(id);
+            if (session == null) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+                return;
+            }
+            
+            if (session.getCompletedAt() != null) {
+                // Completed before, usually by a request whose response was lost
+                MultimediaDto file = uploadSessionDao.getCompletedFile(session);
+                if (file == null) {
+                    AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "File not found");
+                    return;
+                }
+                try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                    JsonViews.writeFile(generator, file);
+                }
+                return;
+            }
+            
+            if (session.getOffset() != session.getLength()) {
+                response.setHeader(OFFSET_HEADER, String.valueOf(session.getOffset()));
+                AsyncRequests.sendError(response, HttpServletResponse.SC_CONFLICT, "Upload incomplete: "
+                        + session.getOffset() + " of " + session.getLength() + " bytes received");
+                return;
+            }
+            
+            MultimediaDto file = uploadSessionDao.completeSession(session,
+                    MultimediaDto.determineMediaType(session.getContentType()));
+            
+            response.setStatus(HttpServletResponse.SC_CREATED);
+            try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                JsonViews.writeFile(generator, file);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error completing upload " + id, e);
+            AsyncRequests.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    /**
+     * Handles the HTTP PATCH method, appending content to an upload session
+     * (/multimedia/uploads/{id}). The body must start at the offset stored by the
+     * server, given in the Upload-Offset header.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws IOException if an I/O error occurs
+     */
+    protected void doPatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        String id = sessionId(request.getPathInfo());
+        if (id == null) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+            return;
+        }
+        if (request.getContentType() == null || !request.getContentType().startsWith(CONTENT_TYPE)) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Content-Type must be " + CONTENT_TYPE);
+            return;
+        }
+        
+        long offset;
+        try {
+            offset = Long.parseLong(request.getHeader(OFFSET_HEADER));
+        } catch (NumberFormatException e) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, OFFSET_HEADER + " header is required");
+            return;
+        }
+        
+        try {
+            UploadSessionDto session = uploadSessionDao.getSession(id);
+            if (session == null) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+                return;
+            }
+            if (session.getCompletedAt() != null) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_CONFLICT, "Upload already completed");
+                return;
+            }
+            if (offset != session.getOffset()) {
+                response.setHeader(OFFSET_HEADER, String.valueOf(session.getOffset()));
+                AsyncRequests.sendError(response, HttpServletResponse.SC_CONFLICT,
+                        "Upload offset is " + session.getOffset());
+                return;
+            }
+            
+            // A chunk takes as long as the client needs to send it; a stalled connection fails the read instead
+            request.getAsyncContext().setTimeout(0);
+            try {
+                session.setOffset(uploadSessionDao.appendContent(session, request.getInputStream()));
+            } catch (IOException e) {
+                // The connection dropped; what arrived is stored and nobody is left to answer
+                LOGGER.log(Level.FINE, "Upload " + id + " interrupted", e);
+                return;
+            }
+            
+            response.setHeader(OFFSET_HEADER, String.valueOf(session.getOffset()));
+            writeSession(response, session);
+        } catch (IllegalStateException e) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_CONFLICT, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error appending to upload " + id, e);
+            AsyncRequests.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    /**
+     * Handles the HTTP DELETE method, aborting an upload session and deleting the
+     * content received (/multimedia/uploads/{id})
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        String id = sessionId(request.getPathInfo());
+        if (id == null) {
+            AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+            return;
+        }
+        
+        try {
+            UploadSessionDto session = uploadSessionDao.getSession(id);
+            if (session != null && session.getCompletedAt() != null) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_CONFLICT, "Upload already completed");
+                return;
+            }
+            if (session == null || !uploadSessionDao.abortSession(session)) {
+                AsyncRequests.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+                return;
+            }
+            
+            try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+                generator.writeStartObject();
+                generator.write("message", "Upload aborted");
+                generator.writeEnd();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error aborting upload " + id, e);
+            AsyncRequests.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+    
+    private void writeSession(HttpServletResponse response, UploadSessionDto session) throws IOException {
+        response.setHeader(OFFSET_HEADER, String.valueOf(session.getOffset()));
+        response.setHeader(LENGTH_HEADER, String.valueOf(session.getLength()));
+        try (JsonGenerator generator = JsonViews.createGenerator(response.getOutputStream())) {
+            JsonViews.writeUploadSession(generator, session);
+        }
+    }
+    
+    // The upload ID of /{id}, or null for any other path
+    private static String sessionId(String pathInfo) {
+        if (pathInfo == null || !pathInfo.matches("^/[0-9a-fA-F]{24}$")) {
+            return null;
+        }
+        return pathInfo.substring(1);
+    }
+}
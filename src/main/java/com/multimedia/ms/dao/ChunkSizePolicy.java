@@ -0,0 +1,72 @@
+package com.multimedia.ms.dao;
+
+import com.multimedia.ms.model.Database;
+
+/**
+ * Chooses the GridFS chunk size of an upload from its media type and declared size.
+ *
+ * Files whose size is known to be small are stored in a single chunk, so reading
+ * them takes one document. Larger files use the chunk size configured for their
+ * media type: big chunks mean fewer documents and round trips when video is
+ * streamed sequentially, at the cost of reading more than asked for short ranges.
+ * GridFsChunkSizeBenchmark measures these trade-offs against a local mongod.
+ */
+final class ChunkSizePolicy {
+    
+    // A chunk document has to stay well under the 16 MB BSON limit, and the tail of
+    // a chunk being uploaded is kept on the upload session document
+    static final int MAX_CHUNK_BYTES = 8 * 1024 * 1024;
+    static final int MIN_CHUNK_BYTES = 16 * 1024;
+    
+    private final int singleChunkMaxBytes;
+    private final int defaultChunkBytes;
+    private final int audioChunkBytes;
+    private final int videoChunkBytes;
+    
+    ChunkSizePolicy(int singleChunkMaxBytes, int defaultChunkBytes, int audioChunkBytes, int videoChunkBytes) {
+        this.singleChunkMaxBytes = clamp(singleChunkMaxBytes);
+        this.defaultChunkBytes = clamp(defaultChunkBytes);
+        this.audioChunkBytes = clamp(audioChunkBytes);
+        this.videoChunkBytes = clamp(videoChunkBytes);
+    }
+    
+    /**
+     * Create the policy configured in the environment
+     *
+     * @param database The database holding the configuration
+     * @return The chunk size policy
+     */
+    static ChunkSizePolicy fromConfig(Database database) {
+        return new ChunkSizePolicy(
+                database.getIntConfigValue("CHUNK_SIZE_SINGLE_MAX_BYTES", 4 * 1024 * 1024),
+                database.getIntConfigValue("CHUNK_SIZE_DEFAULT_BYTES", 1024 * 1024),
+                database.getIntConfigValue("CHUNK_SIZE_AUDIO_BYTES", 1024 * 1024),
+                database.getIntConfigValue("CHUNK_SIZE_VIDEO_BYTES", 4 * 1024 * 1024));
+    }
+    
+    /**
+     * Get the chunk size for an upload
+     *
+     * @param mediaType Media type of the file (audio, video, image...)
+     * @param sizeHint Expected size in bytes, or a negative value if unknown. An
+     *                 overestimate (such as the length of a whole multipart request)
+     *                 is fine.
+     * @return The chunk size in bytes
+     */
+    int chunkSizeFor(String mediaType, long sizeHint) {
+        if (sizeHint >= 0 && sizeHint <= singleChunkMaxBytes) {
+            return (int) Math.max(sizeHint, MIN_CHUNK_BYTES);
+        }
+        if ("video".equals(mediaType)) {
+            return videoChunkBytes;
+        }
+        if ("audio".equals(mediaType)) {
+            return audioChunkBytes;
+        }
+        return defaultChunkBytes;
+    }
+    
+    private static int clamp(int chunkBytes) {
+        return Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, chunkBytes));
+    }
+}
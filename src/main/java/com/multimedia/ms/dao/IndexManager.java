@@ -0,0 +1,154 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.multimedia.ms.model.Database;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Declares the indexes the DAOs rely on, creates the missing ones at startup and
+ * reports drift between the declared and the actual indexes.
+ *
+ * Every filtered or paged query of the DAOs must be served by one of these indexes;
+ * a query added without its index here would scan the whole collection.
+ */
+public class IndexManager {
+    
+    private static final Logger LOGGER = Logger.getLogger(IndexManager.class.getName());
+    
+    private static final List<IndexSpec> REQUIRED_INDEXES = Arrays.asList(
+            // RatingDao: one rating per user and musician, lookups by both
+            new IndexSpec("ratings", new Document("musicianId", 1).append("userId", 1), true),
+            // RatingDao: ratings of a musician in page order
+            new IndexSpec("ratings", new Document("musicianId", 1).append("_id", 1), false),
+            // RatingDao: rating values read by the statistics aggregation without fetching the ratings
+            new IndexSpec("ratings", new Document("musicianId", 1).append("rating", 1), false),
+            // MultimediaDao: public files of a musician in page order
+            new IndexSpec("fs.files", new Document("musicianId", 1).append("isPublic", 1).append("_id", 1), false),
+            // MultimediaDao: all files of a musician in page order
+            new IndexSpec("fs.files", new Document("musicianId", 1).append("_id", 1), false),
+            // MusicianProfileDao: profile of a user
+            new IndexSpec("musicianProfiles", new Document("userId", 1), false),
+            // MusicianProfileDao: leaderboard of all profiles and of each genre
+            new IndexSpec("musicianProfiles", new Document("rankingScore", -1).append("_id", 1), false),
+            new IndexSpec("musicianProfiles", new Document("genres", 1).append("rankingScore", -1).append("_id", 1), false),
+            // MultimediaDao: chunk range reads of the GridFS bucket
+            new IndexSpec("files.chunks", new Document("files_id", 1).append("n", 1), true),
+            // MultimediaDao: reference count of the content stored in a GridFS file
+            new IndexSpec("contentRefs", new Document("fileId", 1), true),
+            // ThumbnailStore: thumbnails of a stored image
+            new IndexSpec("files.files", new Document("metadata.thumbnailOf", 1), false),
+            // ProcessingJobDao: one job of each type per file
+            new IndexSpec("processingJobs", new Document("multimediaId", 1).append("type", 1), true),
+            // ProcessingJobDao: next due job
+            new IndexSpec("processingJobs", new Document("status", 1).append("runAt", 1), false),
+            // UploadSessionDao: purge of abandoned upload sessions
+            new IndexSpec("uploadSessions", new Document("expiresAt", 1), false)
+    );
+    
+    private final MongoDatabase database;
+    
+    public IndexManager(Database database) {
+        this.database = database.getDatabase();
+    }
+    
+    /**
+     * Create the required indexes that do not exist yet.
+     * Creating an index that already exists with the same definition is a no-op, so
+     * this is safe to run on every startup. Failures are logged and left for
+     * {@link #findDrift()} to report.
+     *
+     * @return Descriptions of the indexes that could not be created
+     */
+    public List<String> ensureIndexes() {
+        List<String> failed = new ArrayList<>();
+        for (IndexSpec spec : REQUIRED_INDEXES) {
+            try {
+                database.getCollection(spec.collection)
+                        .createIndex(spec.keys, new IndexOptions().unique(spec.unique));
+            } catch (MongoException e) {
+                LOGGER.log(Level.SEVERE, "Could not create index " + spec + ": " + e.getMessage(), e);
+                failed.add(spec.toString());
+            }
+        }
+        return failed;
+    }
+    
+    /**
+     * Compare the required indexes with the ones present in the database
+     *
+     * @return Descriptions of the required indexes that are missing or defined
+     *         differently, empty if the database matches the declaration
+     * @throws RuntimeException if the indexes cannot be listed
+     */
+    public List<String> findDrift() {
+        try {
+            List<String> drift = new ArrayList<>();
+            for (IndexSpec spec : REQUIRED_INDEXES) {
+                Document existing = findByKeys(spec);
+                if (existing == null) {
+                    drift.add("missing " + spec);
+                } else if (spec.unique && !Boolean.TRUE.equals(existing.getBoolean("unique"))) {
+                    drift.add("not unique " + spec);
+                }
+            }
+            return drift;
+        } catch (MongoException e) {
+            throw new RuntimeException("Error listing indexes: " + e.getMessage(), e);
+        }
+    }
+    
+    private Document findByKeys(IndexSpec spec) {
+        for (Document index : database.getCollection(spec.collection).listIndexes()) {
+            Document keys = index.get("key", Document.class);
+            if (keys != null && sameKeys(spec.keys, keys)) {
+                return index;
+            }
+        }
+        return null;
+    }
+    
+    // Key order matters for a compound index, and the server may return the
+    // directions with a different numeric type than the one declared
+    private static boolean sameKeys(Document expected, Document actual) {
+        List<Map.Entry<String, Object>> expectedKeys = new ArrayList<>(expected.entrySet());
+        List<Map.Entry<String, Object>> actualKeys = new ArrayList<>(actual.entrySet());
+        if (expectedKeys.size() != actualKeys.size()) {
+            return false;
+        }
+        for (int i = 0; i < expectedKeys.size(); i++) {
+            Map.Entry<String, Object> expectedKey = expectedKeys.get(i);
+            Map.Entry<String, Object> actualKey = actualKeys.get(i);
+            if (!expectedKey.getKey().equals(actualKey.getKey())
+                    || !(actualKey.getValue() instanceof Number)
+                    || ((Number) actualKey.getValue()).intValue() != ((Number) expectedKey.getValue()).intValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static final class IndexSpec {
+        private final String collection;
+        private final Document keys;
+        private final boolean unique;
+        
+        IndexSpec(String collection, Document keys, boolean unique) {
+            this.collection = collection;
+            this.keys = keys;
+            this.unique = unique;
+        }
+        
+        @Override
+        public String toString() {
+            return collection + " " + keys.toJson() + (unique ? " unique" : "");
+        }
+    }
+}
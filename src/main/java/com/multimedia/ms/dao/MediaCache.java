@@ -0,0 +1,386 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.MultimediaDto;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Node-local cache of downloaded media, kept on disk and bounded by bytes.
+ *
+ * The content of a GridFS file never changes once written, so it is cached by
+ * fileId. It is copied to the cache directory in the background after the first
+ * download that misses, and the least recently used files are evicted when the
+ * cache grows past its size. The metadata of the downloaded files is kept in
+ * memory for a short time as well, so that a repeated download does not read
+ * anything from MongoDB.
+ *
+ * An evicted or invalidated file is only deleted from disk after a grace period,
+ * since a download may have looked it up and not opened it yet. The cache starts
+ * empty: whatever a previous run left in the directory is deleted.
+ */
+public class MediaCache {
+    
+    private static final Logger LOGGER = Logger.getLogger(MediaCache.class.getName());
+    
+    private static final String TEMP_SUFFIX = ".part";
+    private static final int MAX_METADATA_ENTRIES = 10000;
+    private static final long DELETE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    
+    private final MultimediaDao multimediaDao;
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long metadataTtlMillis;
+    private final ThreadPoolExecutor fillExecutor;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access order, so iteration starts with the least recently used
+    private final LinkedHashMap<String, CachedContent> contents = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedMetadata> metadata = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> filling = new HashSet<>();
+    private final Deque<PendingDelete> pendingDeletes = new ArrayDeque<>();
+    private long usedBytes;
+    
+    private MediaCache(MultimediaDao multimediaDao, Path directory, long maxBytes, long maxFileBytes,
+            long metadataTtlMillis, int fillThreads) {
+        this.multimediaDao = multimediaDao;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.metadataTtlMillis = metadataTtlMillis;
+        this.fillExecutor = new ThreadPoolExecutor(fillThreads, fillThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(100), runnable -> {
+                    Thread thread = new Thread(runnable, "media-cache-fill");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+    
+    /**
+     * Create the cache configured in the environment
+     *
+     * @param database The database holding the configuration
+     * @param multimediaDao DAO the content is read from
+     * @return The cache, or null if it is disabled or its directory is not usable
+     */
+    public static MediaCache create(Database database, MultimediaDao multimediaDao) {
+        long maxBytes = Long.parseLong(database.getConfigValue("MEDIA_CACHE_MAX_BYTES", "1073741824"));
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Path directory = Paths.get(database.getConfigValue("MEDIA_CACHE_DIR",
+                Paths.get(System.getProperty("java.io.tmpdir"), "multimedia-cache").toString()));
+        try {
+            Files.createDirectories(directory);
+            clearDirectory(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Media cache disabled, directory " + directory + " is not usable", e);
+            return null;
+        }
+        return new MediaCache(multimediaDao, directory, maxBytes,
+                Long.parseLong(database.getConfigValue("MEDIA_CACHE_MAX_FILE_BYTES", "268435456")),
+                TimeUnit.SECONDS.toMillis(Math.max(0, database.getIntConfigValue("MEDIA_CACHE_METADATA_TTL_SECONDS", 60))),
+                Math.max(1, database.getIntConfigValue("MEDIA_CACHE_FILL_THREADS", 2)));
+    }
+    
+    private static void clearDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the cached metadata of a multimedia file
+     *
+     * @param id The multimedia ID
+     * @return The metadata, or null if not cached or cached for too long
+     */
+    public MultimediaDto getMetadata(String id) {
+        lock.lock();
+        try {
+            CachedMetadata cached = metadata.get(id);
+            if (cached == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - cached.cachedAt > metadataTtlMillis) {
+                metadata.remove(id);
+                return null;
+            }
+            return cached.multimedia;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Cache the metadata of a multimedia file that is being downloaded
+     *
+     * @param multimedia The metadata read from the database
+     */
+    public void putMetadata(MultimediaDto multimedia) {
+        lock.lock();
+        try {
+            metadata.put(multimedia.getId(), new CachedMetadata(multimedia, System.currentTimeMillis()));
+            if (metadata.size() > MAX_METADATA_ENTRIES) {
+                Iterator<CachedMetadata> eldest = metadata.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drop the cached metadata of a multimedia file that was changed or deleted
+     *
+     * @param id The multimedia ID
+     */
+    public void invalidateMetadata(String id) {
+        lock.lock();
+        try {
+            metadata.remove(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Get the cached content of a GridFS file, marking it as recently used
+     *
+     * @param fileId The GridFS file ID
+     * @return The cached content, or null if not cached
+     */
+    public CachedContent getContent(String fileId) {
+        lock.lock();
+        try {
+            return contents.get(fileId);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Copy the content of a GridFS file to the cache in the background, unless it is
+     * already cached or being copied, or is too large to cache. When the fill queue
+     * is full the file is skipped; a later download will try again.
+     *
+     * @param storedFile The GridFS file entry
+     */
+    public void fillAsync(GridFSFile storedFile) {
+        String fileId = storedFile.getObjectId().toHexString();
+        if (storedFile.getLength() > maxFileBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (contents.containsKey(fileId) || !filling.add(fileId)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            fillExecutor.execute(() -> fill(fileId, storedFile));
+        } catch (RejectedExecutionException e) {
+            lock.lock();
+            try {
+                filling.remove(fileId);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    private void fill(String fileId, GridFSFile storedFile) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, fileId, TEMP_SUFFIX);
+            long written;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                written = multimediaDao.downloadFile(fileId, out);
+            }
+            if (written != storedFile.getLength()) {
+                throw new IOException("Read " + written + " of " + storedFile.getLength() + " bytes");
+            }
+            Path target = directory.resolve(fileId);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+            
+            lock.lock();
+            try {
+                if (!filling.remove(fileId)) {
+                    // Invalidated while it was being copied
+                    pendingDeletes.add(new PendingDelete(target, System.currentTimeMillis()));
+                    return;
+                }
+                contents.put(fileId, new CachedContent(target, written));
+                usedBytes += written;
+                evictLocked();
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error caching file " + fileId, e);
+            lock.lock();
+            try {
+                filling.remove(fileId);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error deleting " + temp, e);
+                }
+            }
+        }
+    }
+    
+    private void evictLocked() {
+        Iterator<CachedContent> eldest = contents.values().iterator();
+        long now = System.currentTimeMillis();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            CachedContent evicted = eldest.next();
+            eldest.remove();
+            usedBytes -= evicted.length;
+            pendingDeletes.add(new PendingDelete(evicted.path, now));
+        }
+    }
+    
+    /**
+     * Drop the cached content of a GridFS file that was deleted
+     *
+     * @param fileId The GridFS file ID
+     */
+    public void invalidateContent(String fileId) {
+        lock.lock();
+        try {
+            filling.remove(fileId);
+            CachedContent removed = contents.remove(fileId);
+            if (removed != null) {
+                usedBytes -= removed.length;
+                pendingDeletes.add(new PendingDelete(removed.path, System.currentTimeMillis()));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Delete the evicted and invalidated files whose grace period is over.
+     * Called periodically.
+     */
+    public void deleteEvicted() {
+        long cutoff = System.currentTimeMillis() - DELETE_GRACE_MILLIS;
+        while (true) {
+            PendingDelete pending;
+            lock.lock();
+            try {
+                pending = pendingDeletes.peek();
+                if (pending == null || pending.since > cutoff) {
+                    return;
+                }
+                pendingDeletes.poll();
+                // The same file may have been cached again since
+                String fileId = pending.path.getFileName().toString();
+                if (contents.containsKey(fileId) || filling.contains(fileId)) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Files.deleteIfExists(pending.path);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error deleting cached file " + pending.path, e);
+            }
+        }
+    }
+    
+    /**
+     * Stop the background copies. The cached files stay on disk until the next start.
+     */
+    public void close() {
+        fillExecutor.shutdownNow();
+    }
+    
+    /**
+     * Content of a GridFS file copied to the local disk
+     */
+    public static final class CachedContent {
+        private final Path path;
+        private final long length;
+        
+        CachedContent(Path path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+        
+        public Path getPath() {
+            return path;
+        }
+        
+        public long getLength() {
+            return length;
+        }
+        
+        /**
+         * Open the cached file for reading. A file that has already been opened can
+         * be read to the end even if it is evicted meanwhile.
+         *
+         * @return A channel on the file
+         * @throws IOException if the file was evicted and deleted since it was looked up
+         */
+        public FileChannel open() throws IOException {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+    }
+    
+    private static final class CachedMetadata {
+        private final MultimediaDto multimedia;
+        private final long cachedAt;
+        
+        CachedMetadata(MultimediaDto multimedia, long cachedAt) {
+            this.multimedia = multimedia;
+            this.cachedAt = cachedAt;
+        }
+    }
+    
+    private static final class PendingDelete {
+        private final Path path;
+        private final long since;
+        
+        PendingDelete(Path path, long since) {
+            this.path = path;
+            this.since = since;
+        }
+    }
+}
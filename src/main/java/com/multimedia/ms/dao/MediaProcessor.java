@@ -0,0 +1,90 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.ProcessingJobDto;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Runs the background processing jobs of uploaded files.
+ *
+ * Every job type reads the stored content and returns the fields to record on the
+ * multimedia metadata. Jobs may run more than once (after a lost lease or when an
+ * upload is completed again), so they must give the same result every time.
+ */
+public class MediaProcessor {
+    
+    // Content types of the audio formats whose header the JDK can read
+    private static final Set<String> AUDIO_INFO_TYPES = Set.of(
+            "audio/wav", "audio/x-wav", "audio/wave", "audio/vnd.wave",
+            "audio/aiff", "audio/x-aiff", "audio/basic", "audio/au", "audio/x-au");
+    
+    private final GridFSBucket gridFSBucket;
+    private final ThumbnailStore thumbnailStore;
+    
+    public MediaProcessor(Database database) {
+        this.gridFSBucket = database.getGridFSBucket();
+        this.thumbnailStore = new ThumbnailStore(database);
+    }
+    
+    /**
+     * Whether {@link ProcessingJobDao#TYPE_AUDIO_INFO} can read the duration of a file
+     *
+     * @param contentType The content type of the file, with or without parameters
+     * @return true for WAV, AIFF and AU content
+     */
+    public static boolean readsAudioInfo(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String type = parameters >= 0 ? contentType.substring(0, parameters) : contentType;
+        return AUDIO_INFO_TYPES.contains(type.trim().toLowerCase(Locale.ROOT));
+    }
+    
+    /**
+     * Run a job
+     *
+     * @param job The job, as claimed
+     * @return The fields to set on the multimedia metadata
+     * @throws Exception if the job fails and should be retried
+     */
+    public Document process(ProcessingJobDto job) throws Exception {
+        ObjectId fileId = new ObjectId(job.getFileId());
+        switch (job.getType()) {
+            case ProcessingJobDao.TYPE_THUMBNAILS:
+                return new Document("thumbnails", new Document(thumbnailStore.ensureThumbnails(fileId)));
+            case ProcessingJobDao.TYPE_AUDIO_INFO:
+                return audioInfo(fileId);
+            default:
+                throw new IllegalArgumentException("Unknown processing job type: " + job.getType());
+        }
+    }
+    
+    /**
+     * Read the duration of an audio file from its header. Jobs are only enqueued for
+     * the formats the JDK can parse (WAV, AIFF, AU); content that turns out to be in
+     * another format gets no duration.
+     */
+    private Document audioInfo(ObjectId fileId) throws Exception {
+        Document info = new Document();
+        try (InputStream in = new BufferedInputStream(gridFSBucket.openDownloadStream(fileId))) {
+            AudioFileFormat format = AudioSystem.getAudioFileFormat(in);
+            float frameRate = format.getFormat().getFrameRate();
+            if (format.getFrameLength() != AudioSystem.NOT_SPECIFIED && frameRate > 0) {
+                info.append("duration", format.getFrameLength() / (double) frameRate);
+            }
+        } catch (UnsupportedAudioFileException e) {
+            // Not a format the JDK reads, which is not an error of the file
+        }
+        return info;
+    }
+}
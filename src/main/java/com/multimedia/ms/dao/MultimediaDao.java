@@ -1,5 +1,7 @@
 package com.multimedia.ms.dao;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
@@ -7,42 +9,89 @@ import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.result.DeleteResult;
-import com.mongodb.client.result.InsertOneResult;
+import com.mongodb.client.result.UpdateResult;
 import com.multimedia.ms.model.Database;
 import com.multimedia.ms.model.MultimediaDto;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 /**
- * Data access object for multimedia files
+ * Data access object for multimedia files.
+ *
+ * Stored content is shared between uploads with the same SHA-256 hash and size.
+ * The contentRefs collection maps each distinct content to its GridFS file and
+ * counts the metadata documents pointing at it; the GridFS file is removed when
+ * the last of them is deleted, together with its thumbnails.
+ *
+ * Whatever is computed from the content of an upload, such as thumbnails, is left
+ * to background processing jobs (see {@link ProcessingJobDao}) so that the upload
+ * returns as soon as the content is stored.
  */
 public class MultimediaDao {
+    private static final Logger LOGGER = Logger.getLogger(MultimediaDao.class.getName());
+    
+    // Upper bound for the chunk data fetched per round trip when streaming downloads
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    
     private final Database database;
     private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> chunksCollection;
+    private final MongoCollection<Document> contentRefs;
     private final GridFSBucket gridFSBucket;
+    private final ChunkSizePolicy chunkSizePolicy;
+    private final ThumbnailStore thumbnailStore;
+    private final ProcessingJobDao processingJobDao;
     
-    public MultimediaDao() {
-        this.database = new Database();
+    public MultimediaDao(Database database) {
+        this.database = database;
         this.collection = database.getDatabase().getCollection("fs.files");
+        this.chunksCollection = database.getDatabase().getCollection("files.chunks");
+        this.contentRefs = database.getDatabase().getCollection("contentRefs");
         this.gridFSBucket = database.getGridFSBucket();
+        this.chunkSizePolicy = ChunkSizePolicy.fromConfig(database);
+        this.thumbnailStore = new ThumbnailStore(database);
+        this.processingJobDao = new ProcessingJobDao(database);
     }
     
     /**
-     * Upload a new multimedia file
+     * Upload a new multimedia file.
+     * The content is hashed while it is written to GridFS. If the same content is
+     * already stored, the chunks just written are discarded and the new metadata
+     * points at the existing GridFS file. The processing jobs of its media type are
+     * enqueued, and their status is pending in the returned record.
      * 
      * @param multimedia The multimedia metadata
      * @param inputStream The file content input stream
+     * @param sizeHint Expected content size used to pick the chunk size, or -1 if unknown
      * @return The created multimedia record with ID
      * @throws RuntimeException if an error occurs
      */
-    public MultimediaDto uploadFile(MultimediaDto multimedia, InputStream inputStream) {
+    public MultimediaDto uploadFile(MultimediaDto multimedia, InputStream inputStream, long sizeHint) {
         try {
             // Upload file to GridFS
             Document metadata = new Document()
@@ -54,20 +103,39 @@ public class MultimediaDao {
             
             GridFSUploadOptions options = new GridFSUploadOptions()
                     .metadata(metadata)
-                    .chunkSizeBytes(1024 * 1024); // 1MB chunk size
+                    .chunkSizeBytes(chunkSizePolicy.chunkSizeFor(multimedia.getMediaType(), sizeHint));
             
-            ObjectId fileId = gridFSBucket.uploadFromStream(
+            CountingInputStream countingStream = new CountingInputStream(inputStream);
+            DigestInputStream digestStream = new DigestInputStream(countingStream, newContentDigest());
+            ObjectId uploadedId = gridFSBucket.uploadFromStream(
                     multimedia.getFilename(),
-                    inputStream,
+                    digestStream,
                     options);
             
+            String contentHash = HexFormat.of().formatHex(digestStream.getMessageDigest().digest());
+            ObjectId fileId = acquireContent(contentHash, countingStream.count, uploadedId);
+            
             // Store metadata in multimedia collection
             multimedia.setFileId(fileId.toString());
-            Document doc = multimedia.toDocument();
+            multimedia.setContentHash(contentHash);
+            multimedia.setFileSize(countingStream.count);
+            multimedia.setId(new ObjectId().toString());
+            List<String> jobTypes = ProcessingJobDao.jobTypesFor(multimedia.getMediaType(),
+                    multimedia.getContentType());
+            multimedia.setProcessing(ProcessingJobDao.pendingStatus(jobTypes));
             
-            InsertOneResult result = collection.insertOne(doc);
-            if (result.getInsertedId() != null) {
-                multimedia.setId(result.getInsertedId().asObjectId().getValue().toString());
+            try {
+                processingJobDao.enqueue(multimedia.getId(), fileId.toString(), jobTypes);
+                collection.insertOne(multimedia.toDocument());
+            } catch (RuntimeException e) {
+                try {
+                    processingJobDao.cancelJobs(multimedia.getId());
+                } catch (RuntimeException cancelError) {
+                    // A leftover job fails for want of its metadata and is given up
+                    e.addSuppressed(cancelError);
+                }
+                releaseContent(fileId);
+                throw e;
             }
             
             return multimedia;
@@ -77,47 +145,114 @@ public class MultimediaDao {
     }
     
     /**
-     * Get all multimedia files
+     * Take a reference on stored content, registering the GridFS file just uploaded
+     * if the content is new. When the content was already stored, the uploaded
+     * file is a duplicate and is deleted.
      * 
-     * @return List of all multimedia metadata
+     * @return The GridFS file holding the content
      */
-    public List<MultimediaDto> getAllFiles() {
-        List<MultimediaDto> files = new ArrayList<>();
+    private ObjectId acquireContent(String contentHash, long length, ObjectId uploadedId) {
+        Document ref;
         try {
-            // Verificar si la colección existe
-            if (collection == null) {
-                System.err.println("Warning: Collection 'fs.files' is null");
-                return files;
+            ref = incrementContentRef(contentHash, length, uploadedId);
+        } catch (MongoException e) {
+            // Two uploads of new content raced on the upsert; the loser now finds the winner's entry
+            if (ErrorCategory.fromErrorCode(e.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
             }
-            
+            ref = incrementContentRef(contentHash, length, uploadedId);
+        }
+        
+        ObjectId fileId = ref.getObjectId("fileId");
+        if (!fileId.equals(uploadedId)) {
             try {
-                FindIterable<Document> docs = collection.find();
-                if (docs == null) {
-                    System.err.println("Warning: Find operation returned null");
-                    return files;
-                }
-                
-                MongoCursor<Document> cursor = docs.iterator();
-                while (cursor.hasNext()) {
-                    Document doc = cursor.next();
-                    if (doc != null) {
-                        MultimediaDto file = MultimediaDto.fromDocument(doc);
-                        if (file != null) {
-                            files.add(file);
-                        }
-                    }
-                }
-                cursor.close();
-            } catch (Exception e) {
-                System.err.println("Error during cursor iteration: " + e.toString());
-                e.printStackTrace();
+                gridFSBucket.delete(uploadedId);
+            } catch (RuntimeException e) {
+                // The upload itself succeeded; an orphaned duplicate only costs storage
+                LOGGER.log(Level.WARNING, "Could not discard duplicate content " + uploadedId, e);
+            }
+        }
+        return fileId;
+    }
+    
+    private Document incrementContentRef(String contentHash, long length, ObjectId uploadedId) {
+        return contentRefs.findOneAndUpdate(
+                Filters.eq("_id", contentHash + ":" + length),
+                Updates.combine(
+                    Updates.inc("refCount", 1),
+                    Updates.setOnInsert("fileId", uploadedId),
+                    Updates.setOnInsert("contentHash", contentHash),
+                    Updates.setOnInsert("length", length),
+                    Updates.setOnInsert("createdAt", new Date())
+                ),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    }
+    
+    /**
+     * Drop a reference on stored content, deleting the GridFS file with the last one
+     */
+    private void releaseContent(ObjectId fileId) {
+        Document ref = contentRefs.findOneAndUpdate(
+                Filters.eq("fileId", fileId),
+                Updates.inc("refCount", -1),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (ref == null) {
+            // Stored before content was shared, so this was its only reference
+            deleteContent(fileId);
+            return;
+        }
+        if (ref.getInteger("refCount", 0) > 0) {
+            return;
+        }
+        // Only delete if no upload took a new reference in the meantime
+        DeleteResult result = contentRefs.deleteOne(Filters.and(
+                Filters.eq("_id", ref.get("_id")),
+                Filters.lte("refCount", 0)));
+        if (result.getDeletedCount() > 0) {
+            deleteContent(fileId);
+        }
+    }
+    
+    private void deleteContent(ObjectId fileId) {
+        thumbnailStore.deleteThumbnails(fileId);
+        gridFSBucket.delete(fileId);
+    }
+    
+    private static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Stream one page of multimedia files in _id order
+     * 
+     * @param musicianId Only files of this musician (null for all musicians)
+     * @param publicOnly Only public files
+     * @param after The _id after which the page starts (null for the first page)
+     * @param limit Maximum number of files in the page
+     * @param consumer Receives each file metadata as it is read
+     * @return The cursor of the next page, or null on the last page
+     */
+    public String forEachFile(String musicianId, boolean publicOnly, ObjectId after, int limit,
+            Consumer<MultimediaDto> consumer) {
+        try {
+            List<Bson> filters = new ArrayList<>();
+            if (musicianId != null) {
+                filters.add(Filters.eq("musicianId", musicianId));
             }
+            if (publicOnly) {
+                filters.add(Filters.eq("isPublic", true));
+            }
+            Bson filter = filters.isEmpty() ? null : Filters.and(filters);
+            
+            return PagedQuery.forEach(collection, filter, after, limit, MultimediaDto::fromDocument, consumer);
         } catch (Exception e) {
-            System.err.println("Critical error in getAllFiles: " + e.toString());
-            e.printStackTrace();
-            // No relanzar la excepción para evitar errores 500
+            throw new RuntimeException("Error retrieving multimedia files: " + e.getMessage(), e);
         }
-        return files;
     }
     
     /**
@@ -136,81 +271,177 @@ public class MultimediaDao {
     }
     
     /**
-     * Get all multimedia files for a musician
+     * Get the GridFS file entry (length, chunk size, upload date) of a stored file
      * 
-     * @param musicianId The musician ID
-     * @return List of multimedia metadata for the musician
+     * @param fileId The GridFS file ID
+     * @return The GridFS file or null if not found
      */
-    public List<MultimediaDto> getFilesByMusicianId(String musicianId) {
-        List<MultimediaDto> files = new ArrayList<>();
+    public GridFSFile getStoredFile(String fileId) {
         try {
-            FindIterable<Document> docs = collection.find(Filters.eq("musicianId", musicianId));
-            MongoCursor<Document> cursor = docs.iterator();
-            
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                MultimediaDto file = MultimediaDto.fromDocument(doc);
-                if (file != null) {
-                    files.add(file);
-                }
-            }
-            cursor.close();
+            return gridFSBucket.find(Filters.eq("_id", new ObjectId(fileId))).first();
         } catch (Exception e) {
-            throw new RuntimeException("Error retrieving multimedia files: " + e.getMessage(), e);
+            throw new RuntimeException("Error retrieving stored file: " + e.getMessage(), e);
         }
-        return files;
     }
     
     /**
-     * Get all public multimedia files for a musician
+     * Stream a file's whole content to an output stream
      * 
-     * @param musicianId The musician ID
-     * @return List of public multimedia metadata for the musician
+     * @param fileId The GridFS file ID
+     * @param outputStream The stream to write the content to
+     * @return The number of bytes written
+     * @throws IOException if writing to the output stream fails
+     * @throws RuntimeException if the file cannot be read
      */
-    public List<MultimediaDto> getPublicFilesByMusicianId(String musicianId) {
-        List<MultimediaDto> files = new ArrayList<>();
+    public long downloadFile(String fileId, OutputStream outputStream) throws IOException {
+        GridFSFile storedFile = getStoredFile(fileId);
+        if (storedFile == null) {
+            throw new RuntimeException("Error downloading file: file not found " + fileId);
+        }
+        if (storedFile.getLength() == 0) {
+            return 0;
+        }
+        return downloadRange(storedFile, 0, storedFile.getLength() - 1, outputStream);
+    }
+    
+    /**
+     * Stream a byte window of a stored file to an output stream.
+     * Only the chunk documents overlapping the window are fetched, in small batches,
+     * and every chunk is flushed as soon as it is written.
+     * 
+     * @param storedFile The GridFS file entry
+     * @param start First byte to send (inclusive)
+     * @param end Last byte to send (inclusive)
+     * @param outputStream The stream to write the content to
+     * @return The number of bytes written
+     * @throws IOException if writing to the output stream fails
+     * @throws RuntimeException if the file cannot be read
+     */
+    public long downloadRange(GridFSFile storedFile, long start, long end, OutputStream outputStream)
+            throws IOException {
+        return readChunks(storedFile, start, end, (data, offset, length) -> {
+            outputStream.write(data, offset, length);
+            outputStream.flush();
+        });
+    }
+    
+    /**
+     * Read the beginning of a byte window of a stored file, for callers that send
+     * the content without blocking and fetch it piece by piece.
+     * Whole chunks are read until about maxBytes are collected, so the returned
+     * content may end before the window does.
+     * 
+     * @param storedFile The GridFS file entry
+     * @param start First byte to read (inclusive)
+     * @param end Last byte of the window (inclusive)
+     * @param maxBytes Approximate maximum number of bytes to read (at least one chunk is read)
+     * @return The content read, in order, starting at start
+     * @throws RuntimeException if the file cannot be read
+     */
+    public List<ByteBuffer> readRange(GridFSFile storedFile, long start, long end, int maxBytes) {
+        int chunkSize = storedFile.getChunkSize();
+        long firstChunk = start / chunkSize;
+        long chunkCount = Math.max(1, maxBytes / chunkSize);
+        long windowEnd = Math.min(end, (firstChunk + chunkCount) * chunkSize - 1);
+        
+        List<ByteBuffer> slices = new ArrayList<>();
         try {
-            FindIterable<Document> docs = collection.find(
+            readChunks(storedFile, start, windowEnd,
+                    (data, offset, length) -> slices.add(ByteBuffer.wrap(data, offset, length)));
+        } catch (IOException e) {
+            // Collecting into memory does not perform I/O
+            throw new UncheckedIOException(e);
+        }
+        return slices;
+    }
+    
+    /**
+     * Pass the part of every chunk overlapping a byte window to a consumer, in order
+     */
+    private long readChunks(GridFSFile storedFile, long start, long end, ChunkConsumer consumer)
+            throws IOException {
+        int chunkSize = storedFile.getChunkSize();
+        int firstChunk = (int) (start / chunkSize);
+        int lastChunk = (int) (end / chunkSize);
+        int batchSize = Math.max(1, Math.min(lastChunk - firstChunk + 1, MAX_BATCH_BYTES / chunkSize));
+        
+        FindIterable<Document> chunks = chunksCollection.find(
                 Filters.and(
-                    Filters.eq("musicianId", musicianId),
-                    Filters.eq("isPublic", true)
-                )
-            );
-            
-            MongoCursor<Document> cursor = docs.iterator();
+                    Filters.eq("files_id", storedFile.getId()),
+                    Filters.gte("n", firstChunk),
+                    Filters.lte("n", lastChunk)
+                ))
+                .projection(Projections.include("n", "data"))
+                .sort(Sorts.ascending("n"))
+                .batchSize(batchSize);
+        
+        long read = 0;
+        int expectedChunk = firstChunk;
+        try (MongoCursor<Document> cursor = chunks.iterator()) {
             while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                MultimediaDto file = MultimediaDto.fromDocument(doc);
-                if (file != null) {
-                    files.add(file);
+                Document chunk = cursor.next();
+                int n = chunk.getInteger("n");
+                if (n != expectedChunk) {
+                    throw new RuntimeException("Error downloading file: missing chunk " + expectedChunk);
                 }
+                
+                byte[] data = chunk.get("data", Binary.class).getData();
+                long chunkStart = (long) n * chunkSize;
+                int from = (int) Math.max(0, start - chunkStart);
+                int to = (int) Math.min(data.length, end - chunkStart + 1);
+                consumer.accept(data, from, to - from);
+                read += to - from;
+                expectedChunk++;
             }
-            cursor.close();
-        } catch (Exception e) {
-            throw new RuntimeException("Error retrieving public multimedia files: " + e.getMessage(), e);
         }
-        return files;
+        
+        if (expectedChunk <= lastChunk) {
+            throw new RuntimeException("Error downloading file: missing chunk " + expectedChunk);
+        }
+        return read;
+    }
+    
+    private interface ChunkConsumer {
+        void accept(byte[] data, int offset, int length) throws IOException;
     }
     
     /**
-     * Download a file's content
-     * 
-     * @param fileId The GridFS file ID
-     * @return The file content as bytes
-     * @throws RuntimeException if an error occurs
+     * Counts the bytes read through it, to learn the content size in the same pass
      */
-    public byte[] downloadFile(String fileId) {
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            gridFSBucket.downloadToStream(new ObjectId(fileId), outputStream);
-            return outputStream.toByteArray();
-        } catch (Exception e) {
-            throw new RuntimeException("Error downloading file: " + e.getMessage(), e);
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip is not supported while hashing the content");
         }
     }
     
     /**
-     * Delete a multimedia file and its metadata
+     * Delete a multimedia file and its metadata.
+     * The stored content is only removed when no other file shares it.
      * 
      * @param id The multimedia metadata ID
      * @return true if deleted, false if not found
@@ -224,12 +455,15 @@ public class MultimediaDao {
                 return false;
             }
             
-            // Delete the GridFS file
-            gridFSBucket.delete(new ObjectId(multimedia.getFileId()));
-            
-            // Delete the metadata
+            // Delete the metadata; only the request that removed it releases the content
             DeleteResult result = collection.deleteOne(Filters.eq("_id", new ObjectId(id)));
-            return result.getDeletedCount() > 0;
+            if (result.getDeletedCount() == 0) {
+                return false;
+            }
+            
+            processingJobDao.cancelJobs(id);
+            releaseContent(new ObjectId(multimedia.getFileId()));
+            return true;
         } catch (Exception e) {
             throw new RuntimeException("Error deleting file: " + e.getMessage(), e);
         }
@@ -251,17 +485,22 @@ public class MultimediaDao {
     public boolean updateFile(MultimediaDto multimedia) {
         try {
             // Update the metadata document
+            multimedia.setUpdatedAt(new Date());
             Document updateDoc = multimedia.toDocument();
             // Remove _id to avoid duplicate key errors if it's set
             updateDoc.remove("_id");
+            // Written by the processing jobs, which may finish while the metadata is edited
+            updateDoc.remove("thumbnails");
+            updateDoc.remove("processing");
+            updateDoc.remove("duration");
             
             // Update the document with the given ID
-            Document result = collection.findOneAndReplace(
+            UpdateResult result = collection.updateOne(
                 Filters.eq("_id", new ObjectId(multimedia.getId())),
-                updateDoc
+                new Document("$set", updateDoc)
             );
             
-            return result != null;
+            return result.getMatchedCount() > 0;
         } catch (Exception e) {
             throw new RuntimeException("Error updating file metadata: " + e.getMessage(), e);
         }
@@ -294,7 +533,8 @@ public class MultimediaDao {
             Document update = new Document()
                     .append("title", multimedia.getTitle())
                     .append("description", multimedia.getDescription())
-                    .append("isPublic", multimedia.isIsPublic());
+                    .append("isPublic", multimedia.isIsPublic())
+                    .append("updatedAt", new Date());
             
             collection.updateOne(
                     Filters.eq("_id", new ObjectId(multimedia.getId())),
@@ -317,13 +557,4 @@ public class MultimediaDao {
             throw new RuntimeException("Error updating file metadata: " + e.getMessage(), e);
         }
     }
-    
-    /**
-     * Close the database connection
-     */
-    public void close() {
-        if (database != null) {
-            database.close();
-        }
-    }
 }
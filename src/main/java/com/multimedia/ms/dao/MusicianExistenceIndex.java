@@ -0,0 +1,157 @@
+package com.multimedia.ms.dao;
+
+import com.multimedia.ms.util.BloomFilter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import org.bson.types.ObjectId;
+
+/**
+ * In-memory existence index over musician profile IDs.
+ *
+ * A Bloom filter answers "definitely not present" without a database round trip.
+ * IDs the filter may contain are checked with an _id-only lookup, and the ones
+ * confirmed that way are remembered in a bounded set until the next rebuild.
+ * The filter only knows the profiles that existed when it was built, so an ID
+ * whose ObjectId timestamp is not older than the build is looked up even if the
+ * filter does not contain it.
+ *
+ * Profiles created or deleted through this instance update the index immediately.
+ * Changes made elsewhere (another instance, the shell) are picked up by
+ * {@link #rebuild()}, which the application runs periodically.
+ */
+public class MusicianExistenceIndex {
+    
+    private static final Logger LOGGER = Logger.getLogger(MusicianExistenceIndex.class.getName());
+    
+    // Room for growth between rebuilds before the false positive rate degrades
+    private static final int MIN_CAPACITY = 10000;
+    private static final int GROWTH_FACTOR = 2;
+    // Tolerated difference between the clocks of the instances that generate profile IDs
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    
+    private final MusicianProfileDao profileDao;
+    private final double falsePositiveProbability;
+    private final int maxConfirmed;
+    private final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+    
+    private volatile BloomFilter filter;
+    // When the rebuild that produced the filter started reading; written after the filter
+    private volatile long filterSince;
+    // Filter being filled by a rebuild; additions meanwhile go to both
+    private volatile BloomFilter pending;
+    
+    /**
+     * Create an empty index; lookups go to the database until {@link #rebuild()} first runs
+     *
+     * @param profileDao DAO used to load and confirm profile IDs
+     * @param falsePositiveProbability Target false positive probability of the filter
+     * @param maxConfirmed Maximum number of confirmed IDs remembered
+     */
+    public MusicianExistenceIndex(MusicianProfileDao profileDao, double falsePositiveProbability, int maxConfirmed) {
+        this.profileDao = profileDao;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.maxConfirmed = maxConfirmed;
+    }
+    
+    /**
+     * Reload every profile ID from the database into a new filter and swap it in
+     */
+    public void rebuild() {
+        rebuildLock.lock();
+        try {
+            rebuildLocked();
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+    
+    private void rebuildLocked() {
+        long started = System.currentTimeMillis();
+        long capacity = Math.max(MIN_CAPACITY, profileDao.estimateProfileCount() * GROWTH_FACTOR);
+        BloomFilter next = new BloomFilter(capacity, falsePositiveProbability);
+        pending = next;
+        try {
+            long[] count = new long[1];
+            profileDao.forEachProfileId(id -> {
+                next.put(id);
+                count[0]++;
+            });
+            filter = next;
+            filterSince = started;
+            confirmed.clear();
+            LOGGER.info("Musician existence index rebuilt with " + count[0] + " profiles in "
+                    + (System.currentTimeMillis() - started) + " ms");
+        } finally {
+            pending = null;
+        }
+    }
+    
+    /**
+     * Check whether a musician profile exists
+     *
+     * @param musicianId The profile ID
+     * @return true if the profile exists
+     */
+    public boolean exists(String musicianId) {
+        if (musicianId == null || !ObjectId.isValid(musicianId)) {
+            return false;
+        }
+        
+        // Read before the filter, so it is never newer than the filter it is checked with
+        long since = filterSince;
+        BloomFilter current = filter;
+        if (current == null) {
+            // Not built yet: fall back to the database
+            return profileDao.profileExists(musicianId);
+        }
+        if (!current.mightContain(musicianId)
+                && new ObjectId(musicianId).getDate().getTime() < since - CLOCK_SKEW_MILLIS) {
+            // Created before the build, so the filter would contain it
+            return false;
+        }
+        if (confirmed.contains(musicianId)) {
+            return true;
+        }
+        
+        boolean exists = profileDao.profileExists(musicianId);
+        if (exists) {
+            if (confirmed.size() >= maxConfirmed) {
+                confirmed.clear();
+            }
+            confirmed.add(musicianId);
+        }
+        return exists;
+    }
+    
+    /**
+     * Record a newly created profile
+     *
+     * @param musicianId The profile ID
+     */
+    public void add(String musicianId) {
+        BloomFilter current = filter;
+        if (current != null) {
+            current.put(musicianId);
+        }
+        BloomFilter rebuilding = pending;
+        if (rebuilding != null) {
+            rebuilding.put(musicianId);
+        }
+        confirmed.add(musicianId);
+    }
+    
+    /**
+     * Record a deleted profile.
+     * The ID cannot be cleared from the filter, so it is only forgotten as confirmed;
+     * lookups for it go to the database until the next rebuild drops it.
+     *
+     * @param musicianId The profile ID
+     */
+    public void remove(String musicianId) {
+        confirmed.remove(musicianId);
+    }
+}
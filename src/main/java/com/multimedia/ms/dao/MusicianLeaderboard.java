@@ -0,0 +1,239 @@
+package com.multimedia.ms.dao;
+
+import com.multimedia.ms.model.MusicianProfileDto;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * In-memory leaderboard of the highest ranked musicians, overall and by genre.
+ *
+ * Each board holds the best profiles by ranking score, twice as many as can be
+ * requested, and publishes an immutable snapshot of its head, so a read copies
+ * at most the requested number of profiles whatever the number of profiles in
+ * the database. The overall board is loaded by {@link #rebuild()}; a genre board
+ * is loaded from the ranking index the first time it is read.
+ *
+ * Rating changes and profile edits made through this instance update the boards
+ * immediately. A board that has lost enough members to no longer fill a request
+ * is reloaded on its next read. Scores that change on another instance only
+ * reach the boards through {@link #rebuild()}, every LEADERBOARD_REFRESH_SECONDS.
+ */
+public class MusicianLeaderboard {
+    
+    private static final Logger LOGGER = Logger.getLogger(MusicianLeaderboard.class.getName());
+    
+    // Genres are free text, so the number of genre boards kept is bounded
+    private static final int MAX_GENRE_BOARDS = 1000;
+    
+    // Highest score first; profiles never scored rank last
+    private static final Comparator<MusicianProfileDto> RANKING = Comparator
+            .comparing(MusicianProfileDto::getRankingScore, Comparator.nullsFirst(Comparator.<Double>naturalOrder()))
+            .reversed()
+            .thenComparing(MusicianProfileDto::getId);
+    
+    private final MusicianProfileDao profileDao;
+    private final int maxSize;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Board> genreBoards = new LinkedHashMap<>(16, 0.75f, true);
+    private Board overall;
+    
+    /**
+     * Create an empty leaderboard; it is loaded from the database on first read
+     *
+     * @param profileDao DAO the boards are loaded from
+     * @param maxSize Maximum number of profiles a read can return
+     */
+    public MusicianLeaderboard(MusicianProfileDao profileDao, int maxSize) {
+        this.profileDao = profileDao;
+        this.maxSize = maxSize;
+        this.capacity = maxSize * 2;
+    }
+    
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Reload the overall board from the database and drop the genre boards, which
+     * are reloaded when next read
+     */
+    public void rebuild() {
+        long started = System.currentTimeMillis();
+        Board board = load(null);
+        int loaded = board.members.size();
+        lock.lock();
+        try {
+            overall = board;
+            genreBoards.clear();
+        } finally {
+            lock.unlock();
+        }
+        LOGGER.info("Musician leaderboard rebuilt with " + loaded + " profiles in "
+                + (System.currentTimeMillis() - started) + " ms");
+    }
+    
+    /**
+     * Get the highest ranked musician profiles
+     *
+     * @param genre Only profiles with this genre (null for all profiles)
+     * @param limit Maximum number of profiles, at most {@link #getMaxSize()}
+     * @return The profiles, best first
+     */
+    public List<MusicianProfileDto> top(String genre, int limit) {
+        Board board;
+        lock.lock();
+        try {
+            board = genre != null ? genreBoards.get(genre) : overall;
+        } finally {
+            lock.unlock();
+        }
+        if (board == null || board.stale) {
+            board = reload(genre);
+        }
+        List<MusicianProfileDto> snapshot = board.snapshot;
+        return snapshot.subList(0, Math.min(limit, snapshot.size()));
+    }
+    
+    private Board reload(String genre) {
+        // Loaded outside the lock; an update that lands meanwhile is caught by the next rebuild
+        Board board = load(genre);
+        lock.lock();
+        try {
+            if (genre == null) {
+                overall = board;
+            } else {
+                genreBoards.put(genre, board);
+                if (genreBoards.size() > MAX_GENRE_BOARDS) {
+                    Iterator<Board> eldest = genreBoards.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return board;
+    }
+    
+    private Board load(String genre) {
+        List<MusicianProfileDto> profiles = new ArrayList<>();
+        profileDao.forEachTopProfile(genre, capacity, profiles::add);
+        Board board = new Board(profiles.size() < capacity);
+        for (MusicianProfileDto profile : profiles) {
+            board.put(profile);
+        }
+        board.publish(maxSize);
+        return board;
+    }
+    
+    /**
+     * Record a profile whose rating statistics or genres changed
+     *
+     * @param profile The profile as stored after the change
+     */
+    public void update(MusicianProfileDto profile) {
+        lock.lock();
+        try {
+            if (overall != null) {
+                overall.update(profile, true, capacity, maxSize);
+            }
+            for (Map.Entry<String, Board> entry : genreBoards.entrySet()) {
+                boolean member = profile.getGenres() != null && profile.getGenres().contains(entry.getKey());
+                entry.getValue().update(profile, member, capacity, maxSize);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Record a deleted profile
+     *
+     * @param musicianId The profile ID
+     */
+    public void remove(String musicianId) {
+        lock.lock();
+        try {
+            if (overall != null) {
+                overall.remove(musicianId, maxSize);
+            }
+            for (Board board : genreBoards.values()) {
+                board.remove(musicianId, maxSize);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * The best profiles of one ranking, guarded by the leaderboard lock except
+     * for the snapshot, which readers take without it
+     */
+    private static final class Board {
+        private final TreeSet<MusicianProfileDto> members = new TreeSet<>(RANKING);
+        private final Map<String, MusicianProfileDto> byId = new HashMap<>();
+        // Whether the board holds every profile of its ranking, so none can be missing from it
+        private boolean complete;
+        private volatile boolean stale;
+        private volatile List<MusicianProfileDto> snapshot = Collections.emptyList();
+        
+        Board(boolean complete) {
+            this.complete = complete;
+        }
+        
+        void put(MusicianProfileDto profile) {
+            members.add(profile);
+            byId.put(profile.getId(), profile);
+        }
+        
+        void update(MusicianProfileDto profile, boolean member, int capacity, int maxSize) {
+            MusicianProfileDto previous = byId.remove(profile.getId());
+            if (previous != null) {
+                members.remove(previous);
+            }
+            // A board that may be missing profiles only takes those above its last member; a
+            // member that falls below it is dropped, as unloaded profiles may rank above it
+            if (member && (complete || (!members.isEmpty() && RANKING.compare(profile, members.last()) < 0))) {
+                put(profile);
+                if (members.size() > capacity) {
+                    byId.remove(members.pollLast().getId());
+                    complete = false;
+                }
+            }
+            if (previous != null || byId.containsKey(profile.getId())) {
+                publish(maxSize);
+            }
+        }
+        
+        void remove(String musicianId, int maxSize) {
+            MusicianProfileDto previous = byId.remove(musicianId);
+            if (previous != null) {
+                members.remove(previous);
+                publish(maxSize);
+            }
+        }
+        
+        void publish(int maxSize) {
+            List<MusicianProfileDto> head = new ArrayList<>(Math.min(maxSize, members.size()));
+            for (MusicianProfileDto profile : members) {
+                if (head.size() == maxSize) {
+                    break;
+                }
+                head.add(profile);
+            }
+            snapshot = Collections.unmodifiableList(head);
+            // Profiles below the last member may belong above the ones that left
+            stale = !complete && members.size() < maxSize;
+        }
+    }
+}
@@ -1,20 +1,24 @@
 package com.multimedia.ms.dao;
 
-import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.Updates;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
-import com.mongodb.client.result.UpdateResult;
 import com.multimedia.ms.model.Database;
 import com.multimedia.ms.model.MusicianProfileDto;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
@@ -23,12 +27,42 @@ import org.bson.types.ObjectId;
  * Data access object for musician profiles
  */
 public class MusicianProfileDao {
-    private final Database database;
+    // Leaderboard order, served by the { rankingScore: -1, _id: 1 } indexes
+    private static final Bson RANKING_ORDER = Sorts.orderBy(Sorts.descending("rankingScore"), Sorts.ascending("_id"));
+    
     private final MongoCollection<Document> collection;
+    // Prior of the ranking score: every musician starts as if it had priorWeight
+    // ratings of priorMean, so a few high ratings do not outrank many good ones
+    private final double priorMean;
+    private final int priorWeight;
+    private volatile Consumer<MusicianProfileDto> ratingStatsListener;
     
-    public MusicianProfileDao() {
-        this.database = new Database();
+    public MusicianProfileDao(Database database) {
         this.collection = database.getDatabase().getCollection("musicianProfiles");
+        this.priorMean = Double.parseDouble(database.getConfigValue("RANKING_PRIOR_MEAN", "3.0"));
+        this.priorWeight = Math.max(1, database.getIntConfigValue("RANKING_PRIOR_WEIGHT", 10));
+    }
+    
+    /**
+     * Set the consumer that receives a profile after each change of its rating
+     * statistics, with the values it has after the change
+     * 
+     * @param listener The consumer, or null for none
+     */
+    public void setRatingStatsListener(Consumer<MusicianProfileDto> listener) {
+        this.ratingStatsListener = listener;
+    }
+    
+    /**
+     * Compute the ranking score of a musician: the Bayesian average of its ratings,
+     * which tends to the plain average as the number of ratings grows
+     * 
+     * @param ratingSum The sum of all rating values
+     * @param totalRatings The number of ratings
+     * @return The ranking score
+     */
+    public double rankingScore(long ratingSum, long totalRatings) {
+        return (priorWeight * priorMean + ratingSum) / (priorWeight + totalRatings);
     }
     
     /**
@@ -49,6 +83,16 @@ public class MusicianProfileDao {
             if (!doc.containsKey("totalRatings")) {
                 doc.append("totalRatings", 0);
             }
+            if (!doc.containsKey("ratingSum")) {
+                doc.append("ratingSum", 0L);
+            }
+            if (doc.get("ratingHistogram") == null) {
+                doc.put("ratingHistogram", MusicianProfileDto.histogramDocument(new long[5]));
+            }
+            if (doc.get("rankingScore") == null) {
+                profile.setRankingScore(rankingScore(0, 0));
+                doc.put("rankingScore", profile.getRankingScore());
+            }
             
             InsertOneResult result = collection.insertOne(doc);
             if (result.getInsertedId() != null) {
@@ -91,28 +135,127 @@ public class MusicianProfileDao {
     }
     
     /**
-     * Get all musician profiles
+     * Stream one page of musician profiles in _id order
      * 
-     * @return List of musician profiles
+     * @param after The _id after which the page starts (null for the first page)
+     * @param limit Maximum number of profiles in the page
+     * @param consumer Receives each profile as it is read
+     * @return The cursor of the next page, or null on the last page
      */
-    public List<MusicianProfileDto> getAllProfiles() {
-        List<MusicianProfileDto> profiles = new ArrayList<>();
+    public String forEachProfile(ObjectId after, int limit, Consumer<MusicianProfileDto> consumer) {
         try {
-            FindIterable<Document> docs = collection.find();
-            MongoCursor<Document> cursor = docs.iterator();
-            
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                MusicianProfileDto profile = MusicianProfileDto.fromDocument(doc);
-                if (profile != null) {
-                    profiles.add(profile);
+            return PagedQuery.forEach(collection, null, after, limit, MusicianProfileDto::fromDocument, consumer);
+        } catch (Exception e) {
+            throw new RuntimeException("Error retrieving musician profiles: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Stream the highest ranked musician profiles, best first
+     * 
+     * @param genre Only profiles with this genre (null for all profiles)
+     * @param limit Maximum number of profiles
+     * @param consumer Receives each profile as it is read
+     */
+    public void forEachTopProfile(String genre, int limit, Consumer<MusicianProfileDto> consumer) {
+        try {
+            Bson filter = genre != null ? Filters.eq("genres", genre) : new Document();
+            for (Document doc : collection.find(filter).sort(RANKING_ORDER).limit(limit)) {
+                consumer.accept(MusicianProfileDto.fromDocument(doc));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error retrieving top musician profiles: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Get musician profiles by ID with a single query
+     * 
+     * @param ids The profile IDs; invalid IDs are ignored
+     * @return The profiles found, by ID
+     */
+    public Map<String, MusicianProfileDto> getProfilesByIds(Collection<String> ids) {
+        try {
+            List<ObjectId> objectIds = new ArrayList<>();
+            for (String id : ids) {
+                if (ObjectId.isValid(id)) {
+                    objectIds.add(new ObjectId(id));
                 }
             }
-            cursor.close();
+            Map<String, MusicianProfileDto> profiles = new HashMap<>();
+            if (objectIds.isEmpty()) {
+                return profiles;
+            }
+            for (Document doc : collection.find(Filters.in("_id", objectIds))) {
+                MusicianProfileDto profile = MusicianProfileDto.fromDocument(doc);
+                profiles.put(profile.getId(), profile);
+            }
+            return profiles;
+        } catch (Exception e) {
+            throw new RuntimeException("Error retrieving musician profiles: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Pass every musician profile to a consumer, reading only the fields that are
+     * searched: name, biography, genres and instruments
+     * 
+     * @param consumer Receives each profile
+     */
+    public void forEachSearchableProfile(Consumer<MusicianProfileDto> consumer) {
+        try {
+            for (Document doc : collection.find()
+                    .projection(Projections.include("name", "biography", "genres", "instruments"))
+                    .batchSize(1000)) {
+                consumer.accept(MusicianProfileDto.fromDocument(doc));
+            }
         } catch (Exception e) {
             throw new RuntimeException("Error retrieving musician profiles: " + e.getMessage(), e);
         }
-        return profiles;
+    }
+    
+    /**
+     * Check whether a musician profile exists, reading only its _id
+     *
+     * @param id The profile ID
+     * @return true if the profile exists
+     */
+    public boolean profileExists(String id) {
+        try {
+            return collection.find(Filters.eq("_id", new ObjectId(id)))
+                    .projection(Projections.include("_id"))
+                    .first() != null;
+        } catch (Exception e) {
+            throw new RuntimeException("Error checking musician profile: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Pass the ID of every musician profile to a consumer, reading only the _id index
+     *
+     * @param consumer Receives each profile ID
+     */
+    public void forEachProfileId(Consumer<String> consumer) {
+        try {
+            for (Document doc : collection.find().projection(Projections.include("_id")).batchSize(10000)) {
+                consumer.accept(doc.getObjectId("_id").toString());
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error retrieving musician profile IDs: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Get the approximate number of musician profiles from the collection metadata
+     *
+     * @return The estimated number of profiles
+     */
+    public long estimateProfileCount() {
+        try {
+            return collection.estimatedDocumentCount();
+        } catch (Exception e) {
+            throw new RuntimeException("Error counting musician profiles: " + e.getMessage(), e);
+        }
     }
     
     /**
@@ -129,6 +272,12 @@ public class MusicianProfileDao {
             // Always update the updatedAt field
             doc.put("updatedAt", new Date());
             
+            // Rating statistics are maintained by the rating operations only
+            doc.remove("averageRating");
+            doc.remove("totalRatings");
+            doc.remove("ratingHistogram");
+            doc.remove("rankingScore");
+            
             // Create a find filter by ID
             Bson filter = Filters.eq("_id", new ObjectId(profile.getId()));
             
@@ -163,35 +312,160 @@ public class MusicianProfileDao {
     }
     
     /**
-     * Update the rating statistics for a musician profile
+     * Overwrite the rating statistics for a musician profile
      * 
      * @param musicianId The musician ID
-     * @param newAverageRating The new average rating
+     * @param ratingSum The sum of all rating values
      * @param totalRatings The new total ratings count
-     * @return true if updated, false if not found
+     * @param histogram The number of ratings of each value, 1 to 5
+     * @return true if the profile exists, false if not found
      */
-    public boolean updateRatingStats(String musicianId, double newAverageRating, int totalRatings) {
+    public boolean updateRatingStats(String musicianId, long ratingSum, int totalRatings, long[] histogram) {
         try {
-            UpdateResult result = collection.updateOne(
+            double averageRating = totalRatings > 0 ? (double) ratingSum / totalRatings : 0.0;
+            Document updated = collection.findOneAndUpdate(
                 Filters.eq("_id", new ObjectId(musicianId)),
                 Updates.combine(
-                    Updates.set("averageRating", newAverageRating),
-                    Updates.set("totalRatings", totalRatings)
+                    Updates.set("ratingSum", ratingSum),
+                    Updates.set("averageRating", averageRating),
+                    Updates.set("totalRatings", totalRatings),
+                    Updates.set("ratingHistogram", MusicianProfileDto.histogramDocument(histogram)),
+                    Updates.set("rankingScore", rankingScore(ratingSum, totalRatings))
+                ),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+            );
+            
+            return notifyRatingStats(updated);
+        } catch (Exception e) {
+            throw new RuntimeException("Error updating rating statistics: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Reset the rating statistics of every musician profile to zero
+     */
+    public void resetAllRatingStats() {
+        try {
+            collection.updateMany(
+                new Document(),
+                Updates.combine(
+                    Updates.set("ratingSum", 0L),
+                    Updates.set("averageRating", 0.0),
+                    Updates.set("totalRatings", 0),
+                    Updates.set("ratingHistogram", MusicianProfileDto.histogramDocument(new long[5])),
+                    Updates.set("rankingScore", rankingScore(0, 0))
                 )
             );
+        } catch (Exception e) {
+            throw new RuntimeException("Error resetting rating statistics: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Apply a change of one rating to the statistics of a musician profile in a
+     * single atomic update. The running sum, the count and the bucket of each rating
+     * value are incremented and the average and ranking score are derived from them
+     * on the server, so the cost does not depend on how many ratings the musician has.
+     * 
+     * @param musicianId The musician ID
+     * @param previousRating The value the rating had, 0 for a new rating
+     * @param newRating The value the rating has now, 0 for a deleted rating
+     * @return true if the profile exists, false if not found
+     */
+    public boolean applyRatingChange(String musicianId, int previousRating, int newRating) {
+        int[] histogramDelta = new int[5];
+        if (previousRating > 0) {
+            histogramDelta[previousRating - 1]--;
+        }
+        if (newRating > 0) {
+            histogramDelta[newRating - 1]++;
+        }
+        return applyRatingChanges(musicianId, histogramDelta);
+    }
+    
+    /**
+     * Apply the changes of several ratings of a musician, such as those of an
+     * import batch, to the statistics of the profile in a single atomic update
+     * 
+     * @param musicianId The musician ID
+     * @param histogramDelta Change in the number of ratings of each value, 1 to 5
+     * @return true if the profile exists, false if not found
+     */
+    public boolean applyRatingChanges(String musicianId, int[] histogramDelta) {
+        try {
+            Document updated = collection.findOneAndUpdate(
+                Filters.eq("_id", new ObjectId(musicianId)),
+                ratingChangePipeline(histogramDelta),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+            );
             
-            return result.getModifiedCount() > 0;
+            return notifyRatingStats(updated);
         } catch (Exception e) {
             throw new RuntimeException("Error updating rating statistics: " + e.getMessage(), e);
         }
     }
     
+    private boolean notifyRatingStats(Document updated) {
+        if (updated == null) {
+            return false;
+        }
+        Consumer<MusicianProfileDto> listener = ratingStatsListener;
+        if (listener != null) {
+            listener.accept(MusicianProfileDto.fromDocument(updated));
+        }
+        return true;
+    }
+    
     /**
-     * Close the database connection
+     * Build the update pipeline that applies a rating change.
+     * Profiles written before the running sum existed get it derived from their
+     * stored average and count on their first update. The histogram cannot be
+     * derived that way: profiles that have ratings but no histogram are left
+     * without one until their statistics are rebuilt.
      */
-    public void close() {
-        if (database != null) {
-            database.close();
+    private List<Bson> ratingChangePipeline(int[] histogramDelta) {
+        int sumDelta = 0;
+        int countDelta = 0;
+        for (int value = 1; value <= 5; value++) {
+            sumDelta += value * histogramDelta[value - 1];
+            countDelta += histogramDelta[value - 1];
+        }
+        
+        Document currentCount = new Document("$ifNull", Arrays.asList("$totalRatings", 0));
+        Document currentSum = new Document("$ifNull", Arrays.asList(
+                "$ratingSum",
+                new Document("$round", Arrays.asList(
+                        new Document("$multiply", Arrays.asList(
+                                new Document("$ifNull", Arrays.asList("$averageRating", 0)),
+                                currentCount)),
+                        0))));
+        
+        Document buckets = new Document();
+        for (int value = 1; value <= 5; value++) {
+            buckets.append(String.valueOf(value), new Document("$add", Arrays.asList(
+                    new Document("$ifNull", Arrays.asList("$ratingHistogram." + value, 0)), histogramDelta[value - 1])));
         }
+        Document histogram = new Document("$cond", Arrays.asList(
+                new Document("$or", Arrays.asList(
+                        new Document("$eq", Arrays.asList(new Document("$type", "$ratingHistogram"), "object")),
+                        new Document("$eq", Arrays.asList(currentCount, 0)))),
+                buckets,
+                "$$REMOVE"));
+        
+        Document counters = new Document()
+                .append("ratingSum", new Document("$add", Arrays.asList(currentSum, sumDelta)))
+                .append("totalRatings", new Document("$add", Arrays.asList(currentCount, countDelta)))
+                .append("ratingHistogram", histogram);
+        
+        Document derived = new Document()
+                .append("averageRating", new Document("$cond", Arrays.asList(
+                        new Document("$gt", Arrays.asList("$totalRatings", 0)),
+                        new Document("$divide", Arrays.asList("$ratingSum", "$totalRatings")),
+                        0.0)))
+                .append("rankingScore", new Document("$divide", Arrays.asList(
+                        new Document("$add", Arrays.asList(priorWeight * priorMean, "$ratingSum")),
+                        new Document("$add", Arrays.asList(priorWeight, "$totalRatings")))));
+        
+        return Arrays.asList(new Document("$set", counters), new Document("$set", derived));
     }
 }
@@ -0,0 +1,395 @@
+package com.multimedia.ms.dao;
+
+import com.multimedia.ms.model.MusicianProfileDto;
+import com.multimedia.ms.util.Pagination;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.bson.types.ObjectId;
+
+/**
+ * In-memory full-text index over musician profiles, ranked with BM25.
+ *
+ * Names, genres, instruments and biographies are split into lowercase terms with
+ * their accents removed, and an inverted index maps each term to the profiles that
+ * contain it. Terms of the name count three times and those of genres and
+ * instruments twice, so a match there outranks one in a biography. A query only
+ * scores the profiles holding one of its terms, so its cost follows how common the
+ * terms are rather than the number of profiles. Only profile IDs are kept; the
+ * profiles of a page of hits are read from the database.
+ *
+ * ProfileServlet keeps the index current for the edits it serves. Profiles edited
+ * through another instance are searched with their old text until the next
+ * {@link #rebuild()}, every SEARCH_INDEX_REFRESH_SECONDS.
+ */
+public class MusicianSearchIndex {
+    
+    private static final Logger LOGGER = Logger.getLogger(MusicianSearchIndex.class.getName());
+    
+    private static final float NAME_WEIGHT = 3f;
+    private static final float GENRE_WEIGHT = 2f;
+    private static final float INSTRUMENT_WEIGHT = 2f;
+    private static final float BIOGRAPHY_WEIGHT = 1f;
+    // BM25 term frequency saturation and document length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MAX_QUERY_TERMS = 32;
+    
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    
+    // Highest score first, then by ID so that pages do not overlap
+    private static final Comparator<Hit> RANKING = Comparator.comparingDouble(Hit::getScore).reversed()
+            .thenComparing(Hit::getId);
+    
+    private final MusicianProfileDao profileDao;
+    // Many searches read the index at once; only updates need it exclusively
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+    
+    private volatile Postings current;
+    // Index being filled by a rebuild; updates meanwhile go to both
+    private Postings pending;
+    // Profiles removed while the rebuild runs, which it may still read from the database
+    private Set<String> removedDuringRebuild;
+    
+    /**
+     * Create an empty index; it is built by the first {@link #rebuild()} or search
+     *
+     * @param profileDao DAO the profiles are loaded from
+     */
+    public MusicianSearchIndex(MusicianProfileDao profileDao) {
+        this.profileDao = profileDao;
+    }
+    
+    /**
+     * Reload every profile from the database into a new index and swap it in
+     */
+    public void rebuild() {
+        rebuildLock.lock();
+        try {
+            rebuildLocked();
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+    
+    private void rebuildLocked() {
+        long started = System.currentTimeMillis();
+        Postings next = new Postings();
+        lock.writeLock().lock();
+        try {
+            pending = next;
+            removedDuringRebuild = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            profileDao.forEachSearchableProfile(profile -> {
+                Map<String, Float> terms = termsOf(profile);
+                lock.writeLock().lock();
+                try {
+                    // A profile read before its removal would otherwise come back
+                    if (!removedDuringRebuild.contains(profile.getId())) {
+                        next.put(profile.getId(), terms);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+            lock.writeLock().lock();
+            try {
+                current = next;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            LOGGER.info("Musician search index rebuilt with " + next.profiles.size() + " profiles and "
+                    + next.postings.size() + " terms in " + (System.currentTimeMillis() - started) + " ms");
+        } finally {
+            lock.writeLock().lock();
+            try {
+                pending = null;
+                removedDuringRebuild = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    /**
+     * Search the profiles matching any term of a query, best matches first
+     *
+     * @param query The search text
+     * @param after The position after which the page starts (null for the first page)
+     * @param limit Maximum number of hits in the page
+     * @return The page of hits
+     */
+    public SearchPage search(String query, Pagination.RankedCursor after, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        tokenize(query, term -> {
+            if (queryTerms.size() < MAX_QUERY_TERMS) {
+                queryTerms.add(term);
+            }
+        });
+        if (queryTerms.isEmpty()) {
+            return new SearchPage(Collections.emptyList(), 0, null);
+        }
+        if (current == null) {
+            // Not built yet: build it now rather than answer with no hits
+            rebuildLock.lock();
+            try {
+                if (current == null) {
+                    rebuildLocked();
+                }
+            } finally {
+                rebuildLock.unlock();
+            }
+        }
+        
+        String afterId = after != null ? after.getId().toHexString() : null;
+        // The worst of the kept hits on top, so it is the one dropped
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, RANKING.reversed());
+        Map<IndexedProfile, Double> scores;
+        lock.readLock().lock();
+        try {
+            scores = current.score(queryTerms);
+            for (Map.Entry<IndexedProfile, Double> scored : scores.entrySet()) {
+                Hit hit = new Hit(scored.getKey().id, scored.getValue());
+                if (after != null && (hit.score > after.getScore()
+                        || (hit.score == after.getScore() && hit.id.compareTo(afterId) <= 0))) {
+                    continue;
+                }
+                best.add(hit);
+                if (best.size() > limit + 1) {
+                    best.poll();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(RANKING);
+        String nextCursor = null;
+        if (hits.size() > limit) {
+            hits = hits.subList(0, limit);
+            Hit last = hits.get(limit - 1);
+            nextCursor = Pagination.encodeCursor(last.score, new ObjectId(last.id));
+        }
+        return new SearchPage(hits, scores.size(), nextCursor);
+    }
+    
+    /**
+     * Record a profile that was created or updated
+     *
+     * @param profile The profile as stored
+     */
+    public void update(MusicianProfileDto profile) {
+        Map<String, Float> terms = termsOf(profile);
+        lock.writeLock().lock();
+        try {
+            if (current != null) {
+                current.put(profile.getId(), terms);
+            }
+            if (pending != null) {
+                pending.put(profile.getId(), terms);
+                removedDuringRebuild.remove(profile.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Record a deleted profile
+     *
+     * @param musicianId The profile ID
+     */
+    public void remove(String musicianId) {
+        lock.writeLock().lock();
+        try {
+            if (current != null) {
+                current.remove(musicianId);
+            }
+            if (pending != null) {
+                pending.remove(musicianId);
+                removedDuringRebuild.add(musicianId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Weighted number of occurrences of each term in the searched fields of a profile
+    private static Map<String, Float> termsOf(MusicianProfileDto profile) {
+        Map<String, Float> terms = new HashMap<>();
+        tokenize(profile.getName(), term -> terms.merge(term, NAME_WEIGHT, Float::sum));
+        if (profile.getGenres() != null) {
+            for (String genre : profile.getGenres()) {
+                tokenize(genre, term -> terms.merge(term, GENRE_WEIGHT, Float::sum));
+            }
+        }
+        if (profile.getInstruments() != null) {
+            for (String instrument : profile.getInstruments()) {
+                tokenize(instrument, term -> terms.merge(term, INSTRUMENT_WEIGHT, Float::sum));
+            }
+        }
+        tokenize(profile.getBiography(), term -> terms.merge(term, BIOGRAPHY_WEIGHT, Float::sum));
+        return terms;
+    }
+    
+    // Lowercase letters and digits with accents removed, so "Canción" matches "cancion"
+    private static void tokenize(String text, Consumer<String> consumer) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        for (String term : SEPARATORS.split(folded)) {
+            if (!term.isEmpty()) {
+                consumer.accept(term);
+            }
+        }
+    }
+    
+    /**
+     * A profile of the index, with its length in weighted terms
+     */
+    private static final class IndexedProfile {
+        private final String id;
+        private final Map<String, Float> terms;
+        private final double length;
+        
+        IndexedProfile(String id, Map<String, Float> terms) {
+            this.id = id;
+            this.terms = terms;
+            double sum = 0;
+            for (float frequency : terms.values()) {
+                sum += frequency;
+            }
+            this.length = sum;
+        }
+    }
+    
+    /**
+     * The inverted index, guarded by the index lock
+     */
+    private static final class Postings {
+        private final Map<String, IndexedProfile> profiles = new HashMap<>();
+        private final Map<String, Map<IndexedProfile, Float>> postings = new HashMap<>();
+        private double totalLength;
+        
+        void put(String id, Map<String, Float> terms) {
+            remove(id);
+            IndexedProfile profile = new IndexedProfile(id, terms);
+            profiles.put(id, profile);
+            for (Map.Entry<String, Float> term : terms.entrySet()) {
+                postings.computeIfAbsent(term.getKey(), key -> new HashMap<>()).put(profile, term.getValue());
+            }
+            totalLength += profile.length;
+        }
+        
+        void remove(String id) {
+            IndexedProfile profile = profiles.remove(id);
+            if (profile == null) {
+                return;
+            }
+            for (String term : profile.terms.keySet()) {
+                Map<IndexedProfile, Float> matches = postings.get(term);
+                matches.remove(profile);
+                if (matches.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+            totalLength -= profile.length;
+        }
+        
+        // BM25 score of every profile holding one of the terms
+        Map<IndexedProfile, Double> score(Set<String> terms) {
+            Map<IndexedProfile, Double> scores = new HashMap<>();
+            int count = profiles.size();
+            double averageLength = count > 0 ? Math.max(totalLength / count, 1) : 1;
+            for (String term : terms) {
+                Map<IndexedProfile, Float> matches = postings.get(term);
+                if (matches == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (count - matches.size() + 0.5) / (matches.size() + 0.5));
+                for (Map.Entry<IndexedProfile, Float> match : matches.entrySet()) {
+                    double frequency = match.getValue();
+                    double norm = K1 * (1 - B + B * match.getKey().length / averageLength);
+                    scores.merge(match.getKey(), idf * frequency * (K1 + 1) / (frequency + norm), Double::sum);
+                }
+            }
+            return scores;
+        }
+    }
+    
+    /**
+     * A profile matching a search, with its relevance score
+     */
+    public static final class Hit {
+        private final String id;
+        private final double score;
+        
+        Hit(String id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+        
+        public String getId() {
+            return id;
+        }
+        
+        public double getScore() {
+            return score;
+        }
+    }
+    
+    /**
+     * One page of search hits
+     */
+    public static final class SearchPage {
+        private final List<Hit> hits;
+        private final int total;
+        private final String nextCursor;
+        
+        SearchPage(List<Hit> hits, int total, String nextCursor) {
+            this.hits = hits;
+            this.total = total;
+            this.nextCursor = nextCursor;
+        }
+        
+        public List<Hit> getHits() {
+            return hits;
+        }
+        
+        /**
+         * @return The number of profiles matching the search, on all pages
+         */
+        public int getTotal() {
+            return total;
+        }
+        
+        /**
+         * @return The cursor of the next page, or null on the last page
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+}
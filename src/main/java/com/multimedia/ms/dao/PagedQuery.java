@@ -0,0 +1,75 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.multimedia.ms.util.Pagination;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+/**
+ * Keyset pagination shared by the DAOs.
+ * Pages are read in _id order starting after the cursor key, so every page is a
+ * bounded index range scan no matter how deep the client has paged. Items are handed
+ * to the caller one at a time as the cursor yields them, without collecting the page.
+ */
+class PagedQuery {
+    
+    private PagedQuery() {
+    }
+    
+    /**
+     * Read one page of documents, passing each item to a consumer as soon as it is read
+     * 
+     * @param collection The collection to read from
+     * @param filter Filter on the listed documents (null for all documents)
+     * @param after The _id after which the page starts (null for the first page)
+     * @param limit Maximum number of items in the page
+     * @param mapper Conversion from document to item
+     * @param consumer Receives the items of the page in order
+     * @param <T> Type of the listed items
+     * @return The cursor of the next page, or null on the last page
+     */
+    static <T> String forEach(MongoCollection<Document> collection, Bson filter, ObjectId after,
+            int limit, Function<Document, T> mapper, Consumer<T> consumer) {
+        List<Bson> filters = new ArrayList<>();
+        if (filter != null) {
+            filters.add(filter);
+        }
+        if (after != null) {
+            filters.add(Filters.gt("_id", after));
+        }
+        Bson query = filters.isEmpty() ? new Document() : Filters.and(filters);
+        
+        // Fetch one extra document to know whether there is a next page
+        int count = 0;
+        ObjectId lastId = null;
+        boolean hasNext = false;
+        try (MongoCursor<Document> cursor = collection.find(query)
+                .sort(Sorts.ascending("_id"))
+                .limit(limit + 1)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                if (count == limit) {
+                    hasNext = true;
+                    break;
+                }
+                T item = mapper.apply(doc);
+                if (item != null) {
+                    consumer.accept(item);
+                }
+                lastId = doc.getObjectId("_id");
+                count++;
+            }
+        }
+        
+        return hasNext && lastId != null ? Pagination.encodeCursor(lastId) : null;
+    }
+}
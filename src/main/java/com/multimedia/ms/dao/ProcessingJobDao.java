@@ -0,0 +1,247 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.ProcessingJobDto;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+/**
+ * Data access object for the queue of background processing jobs.
+ *
+ * Uploads enqueue one job per kind of processing their media type needs, and the
+ * workers claim them with a lease: a claimed job stays running until its lease
+ * ends, after which any worker may claim it again. The status of every job is
+ * mirrored in the processing field of the multimedia metadata, where its results
+ * are recorded too. Finished jobs are removed; failed ones are kept with their
+ * last error.
+ */
+public class ProcessingJobDao {
+    public static final String TYPE_THUMBNAILS = "thumbnails";
+    public static final String TYPE_AUDIO_INFO = "audioInfo";
+    
+    // Upper bound for the delay between retries
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    
+    private final MongoCollection<Document> jobs;
+    private final MongoCollection<Document> metadataCollection;
+    private final long leaseMillis;
+    private final long retryDelayMillis;
+    private final int maxAttempts;
+    
+    public ProcessingJobDao(Database database) {
+        this.jobs = database.getDatabase().getCollection("processingJobs");
+        this.metadataCollection = database.getDatabase().getCollection("fs.files");
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(
+                Math.max(1, database.getIntConfigValue("PROCESSING_LEASE_SECONDS", 600)));
+        this.retryDelayMillis = TimeUnit.SECONDS.toMillis(
+                Math.max(1, database.getIntConfigValue("PROCESSING_RETRY_SECONDS", 30)));
+        this.maxAttempts = Math.max(1, database.getIntConfigValue("PROCESSING_MAX_ATTEMPTS", 5));
+    }
+    
+    /**
+     * Get the kinds of processing a file needs
+     *
+     * @param mediaType The media type of the file
+     * @param contentType The content type of the file
+     * @return The job types, empty if the file needs no processing
+     */
+    public static List<String> jobTypesFor(String mediaType, String contentType) {
+        if ("image".equals(mediaType)) {
+            return Arrays.asList(TYPE_THUMBNAILS);
+        } else if ("audio".equals(mediaType) && MediaProcessor.readsAudioInfo(contentType)) {
+            return Arrays.asList(TYPE_AUDIO_INFO);
+        }
+        return Collections.emptyList();
+    }
+    
+    /**
+     * Build the processing status of a file whose jobs have just been enqueued
+     *
+     * @param jobTypes The job types of the file
+     * @return Every job type as pending, or null if there are none
+     */
+    public static Map<String, String> pendingStatus(List<String> jobTypes) {
+        if (jobTypes.isEmpty()) {
+            return null;
+        }
+        Map<String, String> status = new LinkedHashMap<>();
+        jobTypes.forEach(type -> status.put(type, ProcessingJobDto.STATUS_PENDING));
+        return status;
+    }
+    
+    /**
+     * Enqueue the processing jobs of a file.
+     * Jobs are enqueued before the multimedia metadata is written; a job that runs
+     * before the metadata exists fails and is retried later. Enqueuing a job that
+     * already exists starts it over.
+     *
+     * @param multimediaId The multimedia metadata the results are recorded on
+     * @param fileId The GridFS file the jobs read
+     * @param jobTypes The job types
+     * @throws RuntimeException if an error occurs
+     */
+    public void enqueue(String multimediaId, String fileId, List<String> jobTypes) {
+        try {
+            Date now = new Date();
+            for (String type : jobTypes) {
+                jobs.updateOne(
+                        Filters.and(
+                            Filters.eq("multimediaId", new ObjectId(multimediaId)),
+                            Filters.eq("type", type)
+                        ),
+                        Updates.combine(
+                            Updates.set("fileId", new ObjectId(fileId)),
+                            Updates.set("status", ProcessingJobDto.STATUS_PENDING),
+                            Updates.set("attempts", 0),
+                            Updates.set("runAt", now),
+                            Updates.unset("leaseId"),
+                            Updates.unset("lastError"),
+                            Updates.setOnInsert("createdAt", now)
+                        ),
+                        new UpdateOptions().upsert(true));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error enqueuing processing jobs: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Delete the jobs of a multimedia file, whatever their status
+     *
+     * @param multimediaId The multimedia ID
+     * @throws RuntimeException if an error occurs
+     */
+    public void cancelJobs(String multimediaId) {
+        try {
+            jobs.deleteMany(Filters.eq("multimediaId", new ObjectId(multimediaId)));
+        } catch (Exception e) {
+            throw new RuntimeException("Error cancelling processing jobs: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Claim the job that has been waiting the longest: a pending job due to run, or
+     * a running job whose lease has ended. While running, runAt holds the end of the
+     * lease, so both are found with one index. A job whose lease has ended more
+     * times than it may be attempted (its worker keeps dying) is failed instead.
+     *
+     * @return The claimed job, or null if no job is due
+     * @throws RuntimeException if an error occurs
+     */
+    public ProcessingJobDto claim() {
+        try {
+            while (true) {
+                Date now = new Date();
+                Document doc = jobs.findOneAndUpdate(
+                        Filters.and(
+                            Filters.in("status", ProcessingJobDto.STATUS_PENDING, ProcessingJobDto.STATUS_RUNNING),
+                            Filters.lte("runAt", now)
+                        ),
+                        Updates.combine(
+                            Updates.set("status", ProcessingJobDto.STATUS_RUNNING),
+                            Updates.set("runAt", new Date(now.getTime() + leaseMillis)),
+                            Updates.set("leaseId", new ObjectId()),
+                            Updates.inc("attempts", 1)
+                        ),
+                        new FindOneAndUpdateOptions()
+                            .sort(Sorts.ascending("runAt"))
+                            .returnDocument(ReturnDocument.AFTER));
+                ProcessingJobDto job = ProcessingJobDto.fromDocument(doc);
+                if (job == null || job.getAttempts() <= maxAttempts) {
+                    return job;
+                }
+                fail(job, "Lease expired on every attempt");
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Error claiming processing job: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Record the results of a job on its multimedia metadata and remove the job
+     *
+     * @param job The job, as claimed
+     * @param results The fields to set on the multimedia metadata
+     * @throws IllegalStateException if the multimedia metadata does not exist (yet)
+     * @throws RuntimeException if an error occurs
+     */
+    public void complete(ProcessingJobDto job, Document results) {
+        UpdateResult result;
+        try {
+            List<Bson> updates = new ArrayList<>();
+            results.forEach((field, value) -> updates.add(Updates.set(field, value)));
+            updates.add(Updates.set("processing." + job.getType(), ProcessingJobDto.STATUS_DONE));
+            // A new validator, so clients holding the metadata from before the job see the results
+            updates.add(Updates.set("updatedAt", new Date()));
+            result = metadataCollection.updateOne(Filters.eq("_id", new ObjectId(job.getMultimediaId())),
+                    Updates.combine(updates));
+        } catch (Exception e) {
+            throw new RuntimeException("Error recording processing results: " + e.getMessage(), e);
+        }
+        if (result.getMatchedCount() == 0) {
+            throw new IllegalStateException("Multimedia " + job.getMultimediaId() + " not found");
+        }
+        try {
+            jobs.deleteOne(leaseFilter(job));
+        } catch (Exception e) {
+            throw new RuntimeException("Error completing processing job: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Record a failed attempt of a job. The job is retried after a delay that
+     * doubles with every attempt, until it has been attempted PROCESSING_MAX_ATTEMPTS
+     * times; then it is marked as failed, on its multimedia metadata as well.
+     *
+     * @param job The job, as claimed
+     * @param error What went wrong
+     * @throws RuntimeException if an error occurs
+     */
+    public void fail(ProcessingJobDto job, String error) {
+        try {
+            if (job.getAttempts() >= maxAttempts) {
+                UpdateResult result = jobs.updateOne(leaseFilter(job), Updates.combine(
+                        Updates.set("status", ProcessingJobDto.STATUS_FAILED),
+                        Updates.set("lastError", error)));
+                if (result.getMatchedCount() > 0) {
+                    metadataCollection.updateOne(Filters.eq("_id", new ObjectId(job.getMultimediaId())),
+                            Updates.combine(
+                                Updates.set("processing." + job.getType(), ProcessingJobDto.STATUS_FAILED),
+                                Updates.set("updatedAt", new Date())));
+                }
+                return;
+            }
+            long delay = Math.min(retryDelayMillis << Math.min(job.getAttempts() - 1, 20), MAX_RETRY_DELAY_MILLIS);
+            jobs.updateOne(leaseFilter(job), Updates.combine(
+                    Updates.set("status", ProcessingJobDto.STATUS_PENDING),
+                    Updates.set("runAt", new Date(System.currentTimeMillis() + delay)),
+                    Updates.set("lastError", error)));
+        } catch (Exception e) {
+            throw new RuntimeException("Error recording processing failure: " + e.getMessage(), e);
+        }
+    }
+    
+    // Matches only while the job is still held by the claim, not by a later one
+    private static Bson leaseFilter(ProcessingJobDto job) {
+        return Filters.and(
+                Filters.eq("_id", new ObjectId(job.getId())),
+                Filters.eq("leaseId", new ObjectId(job.getLeaseId())));
+    }
+}
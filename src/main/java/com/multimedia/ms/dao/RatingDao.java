@@ -1,157 +1,346 @@
 package com.multimedia.ms.dao;
 
-import com.mongodb.client.FindIterable;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
-import com.mongodb.client.result.DeleteResult;
-import com.mongodb.client.result.InsertOneResult;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.MusicianProfileDto;
 import com.multimedia.ms.model.RatingDto;
+import com.multimedia.ms.model.RatingStatsDto;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 /**
  * Data access object for musician ratings
  */
 public class RatingDao {
-    private final Database database;
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+    // Declared in IndexManager; holds everything the statistics aggregation reads
+    private static final Document RATING_VALUES_INDEX = new Document("musicianId", 1).append("rating", 1);
+    
     private final MongoCollection<Document> collection;
     private final MusicianProfileDao musicianProfileDao;
     
-    public RatingDao() {
-        this.database = new Database();
+    public RatingDao(Database database, MusicianProfileDao musicianProfileDao) {
         this.collection = database.getDatabase().getCollection("ratings");
-        this.musicianProfileDao = new MusicianProfileDao();
+        this.musicianProfileDao = musicianProfileDao;
     }
     
     /**
-     * Add a new rating for a musician
+     * Create the rating of a user for a musician, or replace the value and comment
+     * of the existing one, in a single atomic upsert that returns the previous
+     * rating. The musician's statistics then get one delta: the new rating for a
+     * creation, the move from the old value to the new one for a change. Concurrent submissions of the same
+     * user cannot create two ratings; the one that loses the race on the unique
+     * index is retried as an update.
      * 
-     * @param rating The rating to add
-     * @return The created rating with ID
+     * @param rating The rating to store
+     * @return Whether the rating was created or updated, with its ID
      * @throws RuntimeException if an error occurs
      */
-    public RatingDto addRating(RatingDto rating) {
+    public UpsertResult upsertRating(RatingDto rating) {
         try {
-            Document doc = rating.toDocument();
-            InsertOneResult result = collection.insertOne(doc);
-            
-            if (result.getInsertedId() != null) {
-                rating.setId(result.getInsertedId().asObjectId().getValue().toString());
+            RatingDto previous;
+            ObjectId newId = new ObjectId();
+            try {
+                previous = findAndUpsert(rating, newId);
+            } catch (MongoException e) {
+                if (ErrorCategory.fromErrorCode(e.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                previous = findAndUpsert(rating, newId);
             }
             
-            // Update the musician's average rating
-            updateMusicianAverageRating(rating.getMusicianId());
-            
-            return rating;
+            if (previous == null) {
+                musicianProfileDao.applyRatingChange(rating.getMusicianId(), 0, rating.getRating());
+                return UpsertResult.created(newId.toString());
+            }
+            if (rating.getRating() != previous.getRating()) {
+                musicianProfileDao.applyRatingChange(rating.getMusicianId(), previous.getRating(), rating.getRating());
+            }
+            return UpsertResult.updated(previous.getId());
         } catch (Exception e) {
-            throw new RuntimeException("Error adding rating: " + e.getMessage(), e);
+            throw new RuntimeException("Error saving rating: " + e.getMessage(), e);
         }
     }
     
+    private RatingDto findAndUpsert(RatingDto rating, ObjectId newId) {
+        return RatingDto.fromDocument(collection.findOneAndUpdate(
+            Filters.and(
+                Filters.eq("musicianId", rating.getMusicianId()),
+                Filters.eq("userId", rating.getUserId())
+            ),
+            Updates.combine(
+                Updates.set("rating", rating.getRating()),
+                Updates.set("comment", rating.getComment()),
+                Updates.setOnInsert("_id", newId),
+                Updates.setOnInsert("createdAt", rating.getCreatedAt())
+            ),
+            new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE)
+        ));
+    }
+    
     /**
-     * Get all ratings
+     * Insert or update a batch of ratings, keyed by musician and user, with one
+     * unordered bulk write, then apply the changes to the statistics of each musician
+     * involved as one delta. When the batch holds several ratings of a user for the
+     * same musician, the last one wins and the others are skipped. The value each
+     * rating had is read before the write, and an upsert only applies while the
+     * rating still has that value, so the deltas are exact even with concurrent
+     * writers; an upsert that lost such a race is read again and retried once.
      * 
-     * @return List of all ratings
+     * @param ratings The ratings to store
+     * @return The outcome of each rating, in the same order
+     * @throws RuntimeException if the batch cannot be written
      */
-    public List<RatingDto> getAllRatings() {
-        List<RatingDto> ratings = new ArrayList<>();
+    public List<UpsertResult> upsertRatings(List<RatingDto> ratings) {
         try {
-            // Verificar si la colección existe
-            if (collection == null) {
-                System.err.println("Warning: Collection 'ratings' is null");
-                return ratings;
+            UpsertResult[] results = new UpsertResult[ratings.size()];
+            Map<String, Integer> lastByKey = new HashMap<>();
+            for (int i = 0; i < ratings.size(); i++) {
+                RatingDto rating = ratings.get(i);
+                Integer previous = lastByKey.put(rating.getMusicianId() + "\u0000" + rating.getUserId(), i);
+                if (previous != null) {
+                    results[previous] = UpsertResult.skipped("Superseded by a later rating in the batch");
+                }
             }
             
-            try {
-                FindIterable<Document> docs = collection.find();
-                if (docs == null) {
-                    System.err.println("Warning: Find operation returned null");
-                    return ratings;
+            List<Integer> pending = new ArrayList<>(lastByKey.values());
+            Collections.sort(pending);
+            Map<Integer, Integer> previous = previousRatings(ratings, pending);
+            List<Integer> collided = bulkUpsert(ratings, pending, previous, results, false);
+            if (!collided.isEmpty()) {
+                previous.keySet().removeAll(collided);
+                previous.putAll(previousRatings(ratings, collided));
+                bulkUpsert(ratings, collided, previous, results, true);
+            }
+            
+            // Rating counts moved by the batch, per musician and value
+            Map<String, int[]> deltas = new HashMap<>();
+            for (int i = 0; i < results.length; i++) {
+                if (!results[i].isStored()) {
+                    continue;
                 }
-                
-                MongoCursor<Document> cursor = docs.iterator();
-                while (cursor.hasNext()) {
-                    Document doc = cursor.next();
-                    if (doc != null) {
-                        RatingDto rating = RatingDto.fromDocument(doc);
-                        if (rating != null) {
-                            ratings.add(rating);
-                        }
-                    }
+                RatingDto rating = ratings.get(i);
+                int[] delta = deltas.computeIfAbsent(rating.getMusicianId(), key -> new int[5]);
+                Integer before = UpsertResult.CREATED.equals(results[i].getStatus()) ? null : previous.get(i);
+                if (before != null) {
+                    delta[before - 1]--;
                 }
-                cursor.close();
-            } catch (Exception e) {
-                System.err.println("Error during cursor iteration: " + e.toString());
-                e.printStackTrace();
+                delta[rating.getRating() - 1]++;
             }
+            for (Map.Entry<String, int[]> delta : deltas.entrySet()) {
+                if (Arrays.stream(delta.getValue()).anyMatch(count -> count != 0)) {
+                    musicianProfileDao.applyRatingChanges(delta.getKey(), delta.getValue());
+                }
+            }
+            return Arrays.asList(results);
         } catch (Exception e) {
-            System.err.println("Critical error in getAllRatings: " + e.toString());
-            e.printStackTrace();
-            // No relanzar la excepción para evitar errores 500
+            throw new RuntimeException("Error importing ratings: " + e.getMessage(), e);
         }
-        return ratings;
     }
-
+    
     /**
-     * Get a rating by ID
+     * Read the stored value of the ratings at the given positions of the batch
      * 
-     * @param id The rating ID
-     * @return The rating or null if not found
+     * @return The value of each position whose rating exists
      */
-    public RatingDto getRatingById(String id) {
+    private Map<Integer, Integer> previousRatings(List<RatingDto> ratings, List<Integer> positions) {
+        List<Bson> keys = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            RatingDto rating = ratings.get(position);
+            keys.add(Filters.and(
+                Filters.eq("musicianId", rating.getMusicianId()),
+                Filters.eq("userId", rating.getUserId())
+            ));
+        }
+        Map<String, Integer> stored = new HashMap<>();
+        collection.find(Filters.or(keys))
+                .projection(Projections.include("musicianId", "userId", "rating"))
+                .forEach(doc -> stored.put(doc.getString("musicianId") + "\u0000" + doc.getString("userId"),
+                        ((Number) doc.get("rating")).intValue()));
+        
+        Map<Integer, Integer> previous = new HashMap<>();
+        for (int position : positions) {
+            RatingDto rating = ratings.get(position);
+            Integer value = stored.get(rating.getMusicianId() + "\u0000" + rating.getUserId());
+            if (value != null) {
+                previous.put(position, value);
+            }
+        }
+        return previous;
+    }
+    
+    /**
+     * Upsert the ratings at the given positions of the batch and record their outcome.
+     * A rating is only written while it still has the value read before; otherwise the
+     * upsert tries to insert it and collides with the unique index.
+     * 
+     * @return The positions whose upsert collided with a concurrent write, unless this is the last try
+     */
+    private List<Integer> bulkUpsert(List<RatingDto> ratings, List<Integer> positions, Map<Integer, Integer> previous,
+            UpsertResult[] results, boolean lastTry) {
+        List<WriteModel<Document>> writes = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            RatingDto rating = ratings.get(position);
+            Integer before = previous.get(position);
+            writes.add(new UpdateOneModel<>(
+                Filters.and(
+                    Filters.eq("musicianId", rating.getMusicianId()),
+                    Filters.eq("userId", rating.getUserId()),
+                    before != null ? Filters.eq("rating", before) : Filters.exists("rating", false)
+                ),
+                Updates.combine(
+                    Updates.set("rating", rating.getRating()),
+                    Updates.set("comment", rating.getComment()),
+                    Updates.setOnInsert("createdAt", rating.getCreatedAt())
+                ),
+                UPSERT));
+        }
+        
+        BulkWriteResult result;
+        List<BulkWriteError> errors;
         try {
-            Document doc = collection.find(Filters.eq("_id", new ObjectId(id))).first();
-            return RatingDto.fromDocument(doc);
+            result = collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            errors = Collections.emptyList();
+        } catch (MongoBulkWriteException e) {
+            result = e.getWriteResult();
+            errors = e.getWriteErrors();
+        }
+        
+        List<Integer> collided = new ArrayList<>();
+        for (BulkWriteError error : errors) {
+            int position = positions.get(error.getIndex());
+            if (!lastTry && error.getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                collided.add(position);
+            } else {
+                results[position] = UpsertResult.failed(error.getMessage());
+            }
+        }
+        for (BulkWriteUpsert upsert : result.getUpserts()) {
+            results[positions.get(upsert.getIndex())] =
+                    UpsertResult.created(upsert.getId().asObjectId().getValue().toString());
+        }
+        for (int position : positions) {
+            if (results[position] == null && !collided.contains(position)) {
+                results[position] = UpsertResult.updated(null);
+            }
+        }
+        return collided;
+    }
+    
+    /**
+     * Stream one page of ratings in _id order
+     * 
+     * @param musicianId Only ratings of this musician (null for all musicians)
+     * @param after The _id after which the page starts (null for the first page)
+     * @param limit Maximum number of ratings in the page
+     * @param consumer Receives each rating as it is read
+     * @return The cursor of the next page, or null on the last page
+     */
+    public String forEachRating(String musicianId, ObjectId after, int limit, Consumer<RatingDto> consumer) {
+        try {
+            Bson filter = musicianId != null ? Filters.eq("musicianId", musicianId) : null;
+            return PagedQuery.forEach(collection, filter, after, limit, RatingDto::fromDocument, consumer);
         } catch (Exception e) {
-            throw new RuntimeException("Error retrieving rating: " + e.getMessage(), e);
+            throw new RuntimeException("Error retrieving ratings: " + e.getMessage(), e);
         }
     }
     
     /**
-     * Get all ratings for a musician
+     * Get the count, average and histogram of a musician's ratings from the aggregates kept on the profile
      * 
      * @param musicianId The musician ID
-     * @return List of ratings for the musician
+     * @return The rating statistics or null if the musician profile does not exist
+     */
+    public RatingStatsDto getMusicianRatingStats(String musicianId) {
+        MusicianProfileDto profile = musicianProfileDao.getProfileById(musicianId);
+        if (profile == null) {
+            return null;
+        }
+        return new RatingStatsDto(profile.getTotalRatings(), profile.getAverageRating(),
+                profile.getRatingHistogram());
+    }
+    
+    /**
+     * Compute the statistics of the ratings of a musician, or of all ratings, inside
+     * the database: count, average, lowest and highest value, standard deviation and
+     * the count of each value. The aggregation only needs the rating values, so it
+     * reads them from the { musicianId, rating } index without fetching any rating.
+     * 
+     * @param musicianId The musician ID (null for all ratings)
+     * @return The rating statistics, all zero when there are no ratings
      */
-    public List<RatingDto> getRatingsByMusicianId(String musicianId) {
-        List<RatingDto> ratings = new ArrayList<>();
+    public RatingStatsDto aggregateRatingStats(String musicianId) {
         try {
-            FindIterable<Document> docs = collection.find(Filters.eq("musicianId", musicianId));
-            MongoCursor<Document> cursor = docs.iterator();
+            List<Bson> pipeline = new ArrayList<>();
+            if (musicianId != null) {
+                pipeline.add(Aggregates.match(Filters.eq("musicianId", musicianId)));
+            }
+            pipeline.add(Aggregates.project(Projections.fields(
+                Projections.include("rating"),
+                Projections.excludeId()
+            )));
+            List<BsonField> accumulators = ratingStatsAccumulators();
+            accumulators.add(Accumulators.min("minRating", "$rating"));
+            accumulators.add(Accumulators.max("maxRating", "$rating"));
+            accumulators.add(Accumulators.stdDevPop("standardDeviation", "$rating"));
+            pipeline.add(Aggregates.group(null, accumulators));
             
-            while (cursor.hasNext()) {
-                Document doc = cursor.next();
-                RatingDto rating = RatingDto.fromDocument(doc);
-                if (rating != null) {
-                    ratings.add(rating);
-                }
+            // Without a filter the planner would scan the collection rather than the index
+            Document stats = collection.aggregate(pipeline).hint(RATING_VALUES_INDEX).first();
+            if (stats == null) {
+                return new RatingStatsDto(0, 0.0, new long[5]);
             }
-            cursor.close();
+            long count = ((Number) stats.get("totalRatings")).longValue();
+            RatingStatsDto result = new RatingStatsDto(
+                count,
+                ((Number) stats.get("ratingSum")).doubleValue() / count,
+                histogramOf(stats)
+            );
+            result.setMinRating(((Number) stats.get("minRating")).intValue());
+            result.setMaxRating(((Number) stats.get("maxRating")).intValue());
+            result.setStandardDeviation(((Number) stats.get("standardDeviation")).doubleValue());
+            return result;
         } catch (Exception e) {
-            throw new RuntimeException("Error retrieving ratings: " + e.getMessage(), e);
+            throw new RuntimeException("Error retrieving rating statistics: " + e.getMessage(), e);
         }
-        return ratings;
     }
     
     /**
-     * Get rating submitted by a specific user for a specific musician
+     * Get a rating by ID
      * 
-     * @param musicianId The musician ID
-     * @param userId The user ID who submitted the rating
+     * @param id The rating ID
      * @return The rating or null if not found
      */
-    public RatingDto getRatingByUserAndMusician(String musicianId, String userId) {
+    public RatingDto getRatingById(String id) {
         try {
-            Document doc = collection.find(
-                Filters.and(
-                    Filters.eq("musicianId", musicianId),
-                    Filters.eq("userId", userId)
-                )
-            ).first();
+            Document doc = collection.find(Filters.eq("_id", new ObjectId(id))).first();
             return RatingDto.fromDocument(doc);
         } catch (Exception e) {
             throw new RuntimeException("Error retrieving rating: " + e.getMessage(), e);
@@ -166,57 +355,203 @@ public class RatingDao {
      */
     public boolean deleteRating(String id) {
         try {
-            // First get the rating to know which musician to update after deletion
-            RatingDto rating = getRatingById(id);
+            // Delete and get the removed rating back to know which musician to update
+            RatingDto rating = RatingDto.fromDocument(
+                collection.findOneAndDelete(Filters.eq("_id", new ObjectId(id)))
+            );
             if (rating == null) {
                 return false;
             }
             
-            DeleteResult result = collection.deleteOne(Filters.eq("_id", new ObjectId(id)));
-            
-            if (result.getDeletedCount() > 0) {
-                // Update the musician's average rating after deletion
-                updateMusicianAverageRating(rating.getMusicianId());
-                return true;
+            // Remove the rating from the musician's running statistics
+            musicianProfileDao.applyRatingChange(rating.getMusicianId(), rating.getRating(), 0);
+            return true;
+        } catch (Exception e) {
+            throw new RuntimeException("Error deleting rating: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Update the value and comment of an existing rating
+     * 
+     * @param rating The rating with its ID and new values
+     * @return true if updated, false if not found
+     */
+    public boolean updateRating(RatingDto rating) {
+        try {
+            // Update and get the previous value back to compute the statistics delta
+            RatingDto previous = RatingDto.fromDocument(
+                collection.findOneAndUpdate(
+                    Filters.eq("_id", new ObjectId(rating.getId())),
+                    Updates.combine(
+                        Updates.set("rating", rating.getRating()),
+                        Updates.set("comment", rating.getComment())
+                    ),
+                    new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE)
+                )
+            );
+            if (previous == null) {
+                return false;
             }
             
-            return false;
+            if (rating.getRating() != previous.getRating()) {
+                musicianProfileDao.applyRatingChange(previous.getMusicianId(), previous.getRating(), rating.getRating());
+            }
+            return true;
         } catch (Exception e) {
-            throw new RuntimeException("Error deleting rating: " + e.getMessage(), e);
+            throw new RuntimeException("Error updating rating: " + e.getMessage(), e);
         }
     }
     
     /**
-     * Calculate and update the average rating for a musician
+     * Recompute the rating statistics of a musician from the stored ratings.
+     * Repairs drift left behind by interrupted updates.
      * 
      * @param musicianId The musician ID
+     * @return true if the profile exists, false if not found
      */
-    private void updateMusicianAverageRating(String musicianId) {
+    public boolean rebuildRatingStats(String musicianId) {
         try {
-            List<RatingDto> ratings = getRatingsByMusicianId(musicianId);
+            Document stats = collection.aggregate(Arrays.asList(
+                Aggregates.match(Filters.eq("musicianId", musicianId)),
+                groupRatingStats(null)
+            )).first();
             
-            // Calculate new average
-            double sum = 0;
-            for (RatingDto rating : ratings) {
-                sum += rating.getRating();
+            if (stats == null) {
+                return musicianProfileDao.updateRatingStats(musicianId, 0, 0, new long[5]);
             }
+            return updateRatingStats(musicianId, stats);
+        } catch (Exception e) {
+            throw new RuntimeException("Error rebuilding rating statistics: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Recompute the rating statistics of every musician from the stored ratings.
+     * Meant for maintenance: ratings written while it runs may need another pass.
+     * 
+     * @return Number of musicians whose statistics were rebuilt
+     */
+    public int rebuildAllRatingStats() {
+        try {
+            // Start from zero so musicians without ratings are reset too
+            musicianProfileDao.resetAllRatingStats();
             
-            double averageRating = ratings.isEmpty() ? 0 : sum / ratings.size();
-            int totalRatings = ratings.size();
-            
-            // Update the musician profile with new rating stats
-            musicianProfileDao.updateRatingStats(musicianId, averageRating, totalRatings);
+            int rebuilt = 0;
+            try (MongoCursor<Document> cursor = collection.aggregate(Arrays.asList(
+                    groupRatingStats("$musicianId")
+                )).iterator()) {
+                while (cursor.hasNext()) {
+                    Document stats = cursor.next();
+                    String musicianId = stats.getString("_id");
+                    if (musicianId == null || !ObjectId.isValid(musicianId)) {
+                        continue;
+                    }
+                    updateRatingStats(musicianId, stats);
+                    rebuilt++;
+                }
+            }
+            return rebuilt;
         } catch (Exception e) {
-            throw new RuntimeException("Error updating musician average rating: " + e.getMessage(), e);
+            throw new RuntimeException("Error rebuilding rating statistics: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Group stage computing the rating statistics of the matched ratings: their
+     * sum, their count and a count of each rating value
+     * 
+     * @param id The group key, null for a single group
+     */
+    private static Bson groupRatingStats(Object id) {
+        return Aggregates.group(id, ratingStatsAccumulators());
+    }
+    
+    private static List<BsonField> ratingStatsAccumulators() {
+        List<BsonField> accumulators = new ArrayList<>();
+        accumulators.add(Accumulators.sum("ratingSum", "$rating"));
+        accumulators.add(Accumulators.sum("totalRatings", 1));
+        for (int value = 1; value <= 5; value++) {
+            accumulators.add(Accumulators.sum("rated" + value, new Document("$cond", Arrays.asList(
+                new Document("$eq", Arrays.asList("$rating", value)), 1, 0))));
         }
+        return accumulators;
+    }
+    
+    private static long[] histogramOf(Document stats) {
+        long[] histogram = new long[5];
+        if (stats != null) {
+            for (int value = 1; value <= 5; value++) {
+                histogram[value - 1] = ((Number) stats.get("rated" + value)).longValue();
+            }
+        }
+        return histogram;
+    }
+    
+    private boolean updateRatingStats(String musicianId, Document stats) {
+        return musicianProfileDao.updateRatingStats(
+            musicianId,
+            ((Number) stats.get("ratingSum")).longValue(),
+            ((Number) stats.get("totalRatings")).intValue(),
+            histogramOf(stats)
+        );
     }
     
     /**
-     * Close the database connection
+     * Outcome of one rating of a batch upsert
      */
-    public void close() {
-        if (database != null) {
-            database.close();
+    public static final class UpsertResult {
+        public static final String CREATED = "created";
+        public static final String UPDATED = "updated";
+        public static final String SKIPPED = "skipped";
+        public static final String FAILED = "failed";
+        
+        private final String status;
+        private final String id;
+        private final String error;
+        
+        private UpsertResult(String status, String id, String error) {
+            this.status = status;
+            this.id = id;
+            this.error = error;
+        }
+        
+        static UpsertResult created(String id) {
+            return new UpsertResult(CREATED, id, null);
+        }
+        
+        static UpsertResult updated(String id) {
+            return new UpsertResult(UPDATED, id, null);
+        }
+        
+        static UpsertResult skipped(String reason) {
+            return new UpsertResult(SKIPPED, null, reason);
+        }
+        
+        static UpsertResult failed(String error) {
+            return new UpsertResult(FAILED, null, error);
+        }
+        
+        public String getStatus() {
+            return status;
+        }
+        
+        /**
+         * @return The ID of the rating, null if unknown (updates of a batch, failures)
+         */
+        public String getId() {
+            return id;
+        }
+        
+        /**
+         * @return Why the rating was skipped or failed, null otherwise
+         */
+        public String getError() {
+            return error;
+        }
+        
+        boolean isStored() {
+            return CREATED.equals(status) || UPDATED.equals(status);
         }
     }
 }
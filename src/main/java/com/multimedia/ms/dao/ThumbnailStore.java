@@ -0,0 +1,130 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.util.ImageResizer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Resized variants (thumbnails) of stored images.
+ *
+ * Each variant is a GridFS file of its own whose metadata names the GridFS file it
+ * was made from (thumbnailOf) and its size, the longest side in pixels. Variants
+ * belong to the content rather than to a multimedia file, so uploads sharing
+ * deduplicated content share them too, and they are deleted with the content.
+ * Thumbnails are always JPEG, whatever the format of the image.
+ */
+public class ThumbnailStore {
+    
+    public static final String CONTENT_TYPE = "image/jpeg";
+    
+    // Sources with more pixels are not decoded (about 100 megapixels)
+    private static final long MAX_SOURCE_PIXELS = 100_000_000L;
+    
+    private final GridFSBucket gridFSBucket;
+    private final MongoCollection<Document> filesCollection;
+    private final ChunkSizePolicy chunkSizePolicy;
+    private final int[] sizes;
+    
+    public ThumbnailStore(Database database) {
+        this.gridFSBucket = database.getGridFSBucket();
+        this.filesCollection = database.getDatabase().getCollection("files.files");
+        this.chunkSizePolicy = ChunkSizePolicy.fromConfig(database);
+        this.sizes = parseSizes(database.getConfigValue("THUMBNAIL_SIZES", "128,512,1024"));
+    }
+    
+    private static int[] parseSizes(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(size -> !size.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .filter(size -> size > 0)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+    
+    /**
+     * Get the thumbnails of an image, creating those that do not exist yet.
+     * Sizes not smaller than the image itself are skipped, and an image that cannot
+     * be decoded gets no thumbnails. Thumbnails created before a failure are kept,
+     * so running this again only creates the rest.
+     *
+     * @param fileId The GridFS file of the image
+     * @return The GridFS IDs of the thumbnails by size, smallest first
+     * @throws IOException if the image cannot be read or a thumbnail encoded
+     */
+    public Map<String, String> ensureThumbnails(ObjectId fileId) throws IOException {
+        Map<Integer, String> thumbnails = new TreeMap<>();
+        for (Document doc : filesCollection.find(Filters.eq("metadata.thumbnailOf", fileId))
+                .projection(Projections.include("metadata.size"))) {
+            thumbnails.put(doc.get("metadata", Document.class).getInteger("size"),
+                    doc.getObjectId("_id").toHexString());
+        }
+        if (sizes.length > 0 && !thumbnails.keySet().containsAll(Arrays.stream(sizes).boxed().toList())) {
+            createThumbnails(fileId, thumbnails);
+        }
+        
+        Map<String, String> result = new LinkedHashMap<>();
+        thumbnails.forEach((size, id) -> result.put(String.valueOf(size), id));
+        return result;
+    }
+    
+    private void createThumbnails(ObjectId fileId, Map<Integer, String> thumbnails) throws IOException {
+        BufferedImage image;
+        try (GridFSDownloadStream in = gridFSBucket.openDownloadStream(fileId)) {
+            image = ImageResizer.read(in, sizes[sizes.length - 1], MAX_SOURCE_PIXELS);
+        }
+        if (image == null) {
+            // Not a format ImageIO can decode, or too large to decode
+            return;
+        }
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        for (int size : sizes) {
+            if (size >= longest || thumbnails.containsKey(size)) {
+                continue;
+            }
+            BufferedImage thumbnail = ImageResizer.scale(image, size);
+            byte[] encoded = ImageResizer.encodeJpeg(thumbnail);
+            Document metadata = new Document()
+                    .append("thumbnailOf", fileId)
+                    .append("size", size)
+                    .append("width", thumbnail.getWidth())
+                    .append("height", thumbnail.getHeight())
+                    .append("contentType", CONTENT_TYPE)
+                    .append("uploadDate", new Date());
+            ObjectId thumbnailId = gridFSBucket.uploadFromStream(fileId.toHexString() + "-" + size,
+                    new ByteArrayInputStream(encoded),
+                    new GridFSUploadOptions()
+                        .metadata(metadata)
+                        .chunkSizeBytes(chunkSizePolicy.chunkSizeFor("image", encoded.length)));
+            thumbnails.put(size, thumbnailId.toHexString());
+        }
+    }
+    
+    /**
+     * Delete the thumbnails of an image
+     *
+     * @param fileId The GridFS file of the image
+     */
+    public void deleteThumbnails(ObjectId fileId) {
+        for (Document doc : filesCollection.find(Filters.eq("metadata.thumbnailOf", fileId))
+                .projection(Projections.include("_id"))) {
+            gridFSBucket.delete(doc.getObjectId("_id"));
+        }
+    }
+}
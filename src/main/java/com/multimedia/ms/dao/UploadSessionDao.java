@@ -0,0 +1,375 @@
+package com.multimedia.ms.dao;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import com.multimedia.ms.model.Database;
+import com.multimedia.ms.model.MultimediaDto;
+import com.multimedia.ms.model.UploadSessionDto;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Data access object for resumable upload sessions.
+ *
+ * The content of a session is written straight into GridFS chunk documents under
+ * the session's fileId as it arrives. Only whole chunks are written (and the last
+ * one of the file); the received bytes of a chunk that is not complete yet are kept
+ * in the session document until the next request completes it. The GridFS file
+ * document, which makes the content visible, and the multimedia metadata are only
+ * written when the session is completed. A completed session is kept, marked with
+ * its completion date, until it expires, so that completing it again returns the
+ * file it created.
+ */
+public class UploadSessionDao {
+    private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+    // How long an append holds a session without storing a chunk before another request may take it over
+    private static final long APPEND_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    
+    private final MongoCollection<Document> sessions;
+    private final MongoCollection<Document> chunksCollection;
+    private final MongoCollection<Document> filesCollection;
+    private final MongoCollection<Document> metadataCollection;
+    private final long sessionTtlMillis;
+    private final ChunkSizePolicy chunkSizePolicy;
+    private final ProcessingJobDao processingJobDao;
+    
+    public UploadSessionDao(Database database) {
+        this.sessions = database.getDatabase().getCollection("uploadSessions");
+        this.chunksCollection = database.getDatabase().getCollection("files.chunks");
+        this.filesCollection = database.getDatabase().getCollection("files.files");
+        this.metadataCollection = database.getDatabase().getCollection("fs.files");
+        this.sessionTtlMillis = TimeUnit.HOURS.toMillis(
+                Math.max(1, database.getIntConfigValue("UPLOAD_SESSION_TTL_HOURS", 24)));
+        this.chunkSizePolicy = ChunkSizePolicy.fromConfig(database);
+        this.processingJobDao = new ProcessingJobDao(database);
+    }
+    
+    /**
+     * Create a new upload session
+     *
+     * @param session The session with the file metadata and declared length
+     * @return The created session with ID, fileId and chunk size
+     * @throws RuntimeException if an error occurs
+     */
+    public UploadSessionDto createSession(UploadSessionDto session) {
+        try {
+            session.setId(new ObjectId().toString());
+            session.setFileId(new ObjectId().toString());
+            session.setMultimediaId(new ObjectId().toString());
+            session.setChunkSize(chunkSizePolicy.chunkSizeFor(
+                    MultimediaDto.determineMediaType(session.getContentType()), session.getLength()));
+            session.setOffset(0);
+            session.setPending(new byte[0]);
+            session.setCreatedAt(new Date());
+            session.setExpiresAt(new Date(System.currentTimeMillis() + sessionTtlMillis));
+            sessions.insertOne(session.toDocument());
+            return session;
+        } catch (Exception e) {
+            throw new RuntimeException("Error creating upload session: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Get an upload session by ID
+     *
+     * @param id The upload session ID
+     * @return The upload session or null if not found
+     */
+    public UploadSessionDto getSession(String id) {
+        try {
+            Document doc = sessions.find(Filters.eq("_id", new ObjectId(id))).first();
+            return UploadSessionDto.fromDocument(doc);
+        } catch (Exception e) {
+            throw new RuntimeException("Error retrieving upload session: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Append content to an upload session at its current offset.
+     * The session is first leased to this request at that offset, so a concurrent
+     * request for the same offset fails before it writes any chunk. The content is
+     * then read one chunk at a time and every complete chunk is stored before the
+     * next one is read. If reading fails (usually a dropped connection), the bytes
+     * received until then are kept and the session offset moves past them, so the
+     * client resumes from there.
+     *
+     * @param session The upload session, as read before the request
+     * @param content The content, starting at the session offset
+     * @return The new offset
+     * @throws IOException if reading the content fails; what was received is kept
+     * @throws IllegalStateException if another request moved the offset or is appending
+     * @throws IllegalArgumentException if the content goes beyond the declared length
+     * @throws RuntimeException if the content cannot be stored
+     */
+    public long appendContent(UploadSessionDto session, InputStream content) throws IOException {
+        int chunkSize = session.getChunkSize();
+        long length = session.getLength();
+        ObjectId fileId = new ObjectId(session.getFileId());
+        
+        byte[] chunk = new byte[chunkSize];
+        byte[] pending = session.getPending();
+        System.arraycopy(pending, 0, chunk, 0, pending.length);
+        int filled = pending.length;
+        int n = (int) (session.getOffset() / chunkSize);
+        long offset = session.getOffset();
+        
+        ObjectId sessionId = new ObjectId(session.getId());
+        ObjectId lease = new ObjectId();
+        long leaseExpires = lease(sessionId, lease, Filters.and(
+                Filters.eq("offset", session.getOffset()),
+                Filters.eq("completedAt", null),
+                Filters.or(Filters.eq("leaseExpiresAt", null), Filters.lt("leaseExpiresAt", new Date()))));
+        if (leaseExpires < 0) {
+            throw new IllegalStateException("Upload offset changed or another request is appending to it");
+        }
+        
+        IOException readError = null;
+        boolean overflow = false;
+        try {
+            while (offset < length) {
+                int read = content.read(chunk, filled, (int) Math.min(chunkSize - filled, length - offset));
+                if (read < 0) {
+                    break;
+                }
+                filled += read;
+                offset += read;
+                if (filled == chunkSize || offset == length) {
+                    // Renewed once half used, so a slow client does not lose the session to another request
+                    if (System.currentTimeMillis() > leaseExpires - APPEND_LEASE_MILLIS / 2) {
+                        leaseExpires = lease(sessionId, lease, Filters.eq("lease", lease));
+                        if (leaseExpires < 0) {
+                            throw new IllegalStateException("Upload taken over by another request");
+                        }
+                    }
+                    storeChunk(fileId, n, chunk, filled);
+                    n++;
+                    filled = 0;
+                }
+            }
+            overflow = offset == length && content.read() >= 0;
+        } catch (IOException e) {
+            readError = e;
+        } catch (RuntimeException e) {
+            // Nothing is saved; let the client resend from the old offset without waiting for the lease
+            try {
+                sessions.updateOne(Filters.and(Filters.eq("_id", sessionId), Filters.eq("lease", lease)),
+                        Updates.combine(Updates.unset("lease"), Updates.unset("leaseExpiresAt")));
+            } catch (Exception releaseError) {
+                e.addSuppressed(releaseError);
+            }
+            throw e;
+        }
+        
+        UpdateResult result;
+        try {
+            result = sessions.updateOne(
+                    Filters.and(
+                        Filters.eq("_id", sessionId),
+                        Filters.eq("lease", lease)
+                    ),
+                    Updates.combine(
+                        Updates.set("offset", offset),
+                        Updates.set("pending", new Binary(Arrays.copyOf(chunk, filled))),
+                        Updates.set("expiresAt", new Date(System.currentTimeMillis() + sessionTtlMillis)),
+                        Updates.unset("lease"),
+                        Updates.unset("leaseExpiresAt")
+                    ));
+        } catch (Exception e) {
+            throw new RuntimeException("Error saving upload progress: " + e.getMessage(), e);
+        }
+        if (result.getMatchedCount() == 0) {
+            throw new IllegalStateException("Upload taken over by another request");
+        }
+        
+        if (readError != null) {
+            throw readError;
+        }
+        if (overflow) {
+            throw new IllegalArgumentException("Content exceeds the declared upload length");
+        }
+        return offset;
+    }
+    
+    /**
+     * Lease a session to an append, or extend its lease
+     *
+     * @param sessionId The session ID
+     * @param lease The ID of the append
+     * @param condition What the session must match for the lease to be granted
+     * @return When the lease expires, or -1 if the session did not match
+     */
+    private long lease(ObjectId sessionId, ObjectId lease, Bson condition) {
+        long expires = System.currentTimeMillis() + APPEND_LEASE_MILLIS;
+        try {
+            UpdateResult result = sessions.updateOne(
+                    Filters.and(Filters.eq("_id", sessionId), condition),
+                    Updates.combine(
+                        Updates.set("lease", lease),
+                        Updates.set("leaseExpiresAt", new Date(expires))
+                    ));
+            return result.getMatchedCount() > 0 ? expires : -1;
+        } catch (Exception e) {
+            throw new RuntimeException("Error leasing upload session: " + e.getMessage(), e);
+        }
+    }
+    
+    // Idempotent, so that content sent again after a lost response overwrites the same chunk
+    private void storeChunk(ObjectId fileId, int n, byte[] chunk, int length) {
+        try {
+            chunksCollection.replaceOne(
+                    Filters.and(Filters.eq("files_id", fileId), Filters.eq("n", n)),
+                    new Document("files_id", fileId)
+                        .append("n", n)
+                        .append("data", new Binary(Arrays.copyOf(chunk, length))),
+                    UPSERT);
+        } catch (Exception e) {
+            throw new RuntimeException("Error storing upload chunk: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Complete an upload session whose content has been fully received: create the
+     * GridFS file document, enqueue the processing jobs and create the multimedia
+     * metadata, then mark the session completed. If completing fails before the
+     * mark, completing again rewrites the same documents and starts the processing
+     * jobs over; once marked, {@link #getCompletedFile} returns the record.
+     *
+     * @param session The upload session
+     * @param mediaType The media type of the file
+     * @return The created multimedia record
+     * @throws IllegalStateException if content is still missing
+     * @throws RuntimeException if an error occurs
+     */
+    public MultimediaDto completeSession(UploadSessionDto session, String mediaType) {
+        if (session.getOffset() != session.getLength()) {
+            throw new IllegalStateException("Upload incomplete: " + session.getOffset() + " of "
+                    + session.getLength() + " bytes received");
+        }
+        try {
+            ObjectId fileId = new ObjectId(session.getFileId());
+            Date uploadDate = new Date();
+            
+            Document gridFsMetadata = new Document()
+                    .append("musicianId", session.getMusicianId())
+                    .append("title", session.getTitle())
+                    .append("description", session.getDescription())
+                    .append("uploadDate", uploadDate)
+                    .append("isPublic", session.isIsPublic());
+            filesCollection.replaceOne(Filters.eq("_id", fileId),
+                    new Document("_id", fileId)
+                        .append("length", session.getLength())
+                        .append("chunkSize", session.getChunkSize())
+                        .append("uploadDate", uploadDate)
+                        .append("filename", session.getFilename())
+                        .append("metadata", gridFsMetadata),
+                    UPSERT);
+            
+            MultimediaDto multimedia = new MultimediaDto(session.getFileId(), session.getFilename(),
+                    session.getContentType(), session.getMusicianId(), session.getTitle(),
+                    session.getDescription(), mediaType, session.getLength());
+            multimedia.setId(session.getMultimediaId());
+            multimedia.setIsPublic(session.isIsPublic());
+            multimedia.setUploadDate(uploadDate);
+            multimedia.setUpdatedAt(uploadDate);
+            List<String> jobTypes = ProcessingJobDao.jobTypesFor(mediaType, session.getContentType());
+            multimedia.setProcessing(ProcessingJobDao.pendingStatus(jobTypes));
+            processingJobDao.enqueue(session.getMultimediaId(), session.getFileId(), jobTypes);
+            metadataCollection.replaceOne(Filters.eq("_id", new ObjectId(session.getMultimediaId())),
+                    multimedia.toDocument(), UPSERT);
+            
+            sessions.updateOne(Filters.eq("_id", new ObjectId(session.getId())),
+                    Updates.combine(
+                        Updates.set("completedAt", uploadDate),
+                        Updates.set("pending", new Binary(new byte[0])),
+                        Updates.set("expiresAt", new Date(uploadDate.getTime() + sessionTtlMillis))
+                    ));
+            session.setCompletedAt(uploadDate);
+            return multimedia;
+        } catch (Exception e) {
+            throw new RuntimeException("Error completing upload: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Get the multimedia record created by a completed upload session
+     *
+     * @param session The completed upload session
+     * @return The multimedia record, or null if the file has been deleted since
+     * @throws RuntimeException if an error occurs
+     */
+    public MultimediaDto getCompletedFile(UploadSessionDto session) {
+        try {
+            Document doc = metadataCollection.find(Filters.eq("_id", new ObjectId(session.getMultimediaId()))).first();
+            return MultimediaDto.fromDocument(doc);
+        } catch (Exception e) {
+            throw new RuntimeException("Error retrieving uploaded file: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Abort an upload session that has not been completed, deleting the content
+     * received so far
+     *
+     * @param session The upload session
+     * @return true if deleted, false if not found or already completed
+     * @throws RuntimeException if an error occurs
+     */
+    public boolean abortSession(UploadSessionDto session) {
+        try {
+            Bson open = Filters.and(Filters.eq("_id", new ObjectId(session.getId())), Filters.eq("completedAt", null));
+            return deleteSession(open, new ObjectId(session.getFileId()));
+        } catch (Exception e) {
+            throw new RuntimeException("Error aborting upload: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Abort every session not used within the session lifetime
+     *
+     * @return The number of sessions removed
+     * @throws RuntimeException if an error occurs
+     */
+    public int purgeExpiredSessions() {
+        try {
+            int purged = 0;
+            Date now = new Date();
+            for (Document doc : sessions.find(Filters.lt("expiresAt", now)).projection(Projections.include("fileId"))) {
+                // Skip sessions that a request has extended since they were listed
+                Bson expired = Filters.and(Filters.eq("_id", doc.getObjectId("_id")), Filters.lt("expiresAt", now));
+                if (deleteSession(expired, doc.getObjectId("fileId"))) {
+                    purged++;
+                }
+            }
+            return purged;
+        } catch (Exception e) {
+            throw new RuntimeException("Error purging upload sessions: " + e.getMessage(), e);
+        }
+    }
+    
+    private boolean deleteSession(Bson filter, ObjectId fileId) {
+        Document deleted = sessions.findOneAndDelete(filter,
+                new FindOneAndDeleteOptions().projection(Projections.include("completedAt")));
+        if (deleted == null) {
+            return false;
+        }
+        // The chunks of a completed session are the content of the file it created
+        if (deleted.get("completedAt") == null) {
+            chunksCollection.deleteMany(Filters.eq("files_id", fileId));
+        }
+        return true;
+    }
+}
@@ -1,14 +1,21 @@
 package com.multimedia.ms.model;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 import io.github.cdimascio.dotenv.Dotenv;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Database connection manager for MongoDB
+ * Database connection manager for MongoDB.
+ *
+ * A single instance is created per web application by
+ * {@link com.multimedia.ms.ApplicationContextListener} and shared by every DAO,
+ * so the whole deployment works against one connection pool.
  */
 public class Database {
     private Dotenv dotenv;
@@ -44,7 +51,24 @@ public class Database {
         String connectionString = dotenv.get("MONGODB_CONNECTION_STRING");
         String databaseName = dotenv.get("MONGODB_DATABASE");
         
-        this.mongoClient = MongoClients.create(connectionString);
+        // Pool limits; options given in the connection string itself take precedence
+        int maxPoolSize = getIntConfigValue("MONGODB_MAX_POOL_SIZE", 50);
+        int minPoolSize = getIntConfigValue("MONGODB_MIN_POOL_SIZE", 0);
+        int maxConnecting = getIntConfigValue("MONGODB_MAX_CONNECTING", 2);
+        long maxWaitTimeMs = getIntConfigValue("MONGODB_MAX_WAIT_TIME_MS", 5000);
+        long maxIdleTimeMs = getIntConfigValue("MONGODB_MAX_IDLE_TIME_MS", 300000);
+        
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyToConnectionPoolSettings(pool -> pool
+                        .maxSize(maxPoolSize)
+                        .minSize(minPoolSize)
+                        .maxConnecting(maxConnecting)
+                        .maxWaitTime(maxWaitTimeMs, TimeUnit.MILLISECONDS)
+                        .maxConnectionIdleTime(maxIdleTimeMs, TimeUnit.MILLISECONDS))
+                .applyConnectionString(new ConnectionString(connectionString))
+                .build();
+        
+        this.mongoClient = MongoClients.create(settings);
         this.database = mongoClient.getDatabase(databaseName);
         this.gridFSBucket = GridFSBuckets.create(database, "files");
     }
@@ -72,4 +96,18 @@ public class Database {
         String value = dotenv.get(key);
         return (value != null) ? value : defaultValue;
     }
+    
+    // Helper method to get numeric configuration values
+    public int getIntConfigValue(String key, int defaultValue) {
+        String value = dotenv.get(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Warning: Invalid numeric value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package com.multimedia.ms.model;
 
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
@@ -19,9 +21,15 @@ public class MultimediaDto {
     private long fileSize;         // Size in bytes
     private Date uploadDate;       // When the file was uploaded
     private boolean isPublic;      // Whether the file is publicly accessible
+    private String contentHash;    // SHA-256 of the content (hex), shared by identical uploads
+    private Date updatedAt;        // When the metadata last changed (null if never since the upload)
+    private Map<String, String> thumbnails; // GridFS IDs of the resized images by size in pixels
+    private Map<String, String> processing; // Status of the background processing jobs by type
+    private Double duration;       // Length of audio in seconds, when known
     
     public MultimediaDto() {
         this.uploadDate = new Date();
+        this.updatedAt = this.uploadDate;
         this.isPublic = true;
     }
     
@@ -61,7 +69,7 @@ public class MultimediaDto {
         ObjectId objectId = doc.getObjectId("_id");
         String id = objectId != null ? objectId.toString() : null;
         
-        return new MultimediaDto(
+        MultimediaDto multimedia = new MultimediaDto(
             id,
             doc.getString("fileId"),
             doc.getString("filename"),
@@ -74,6 +82,23 @@ public class MultimediaDto {
             doc.getDate("uploadDate"),
             doc.getBoolean("isPublic", true)
         );
+        multimedia.setContentHash(doc.getString("contentHash"));
+        multimedia.setUpdatedAt(doc.getDate("updatedAt"));
+        Document thumbnails = doc.get("thumbnails", Document.class);
+        if (thumbnails != null) {
+            Map<String, String> sizes = new LinkedHashMap<>();
+            thumbnails.forEach((size, thumbnailId) -> sizes.put(size, (String) thumbnailId));
+            multimedia.setThumbnails(sizes);
+        }
+        Document processing = doc.get("processing", Document.class);
+        if (processing != null) {
+            Map<String, String> status = new LinkedHashMap<>();
+            processing.forEach((type, jobStatus) -> status.put(type, (String) jobStatus));
+            multimedia.setProcessing(status);
+        }
+        Number duration = doc.get("duration", Number.class);
+        multimedia.setDuration(duration != null ? duration.doubleValue() : null);
+        return multimedia;
     }
     
     // Convert to MongoDB Document
@@ -98,7 +123,12 @@ public class MultimediaDto {
             .append("mediaType", mediaType)
             .append("fileSize", fileSize)
             .append("uploadDate", uploadDate)
-            .append("isPublic", isPublic);
+            .append("isPublic", isPublic)
+            .append("contentHash", contentHash)
+            .append("updatedAt", updatedAt)
+            .append("thumbnails", thumbnails != null ? new Document(thumbnails) : null)
+            .append("processing", processing != null ? new Document(processing) : null)
+            .append("duration", duration);
     }
     
     // Determine media type from content type
@@ -212,4 +242,44 @@ public class MultimediaDto {
     public void setIsPublic(boolean isPublic) {
         this.isPublic = isPublic;
     }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Date getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Date updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public Map<String, String> getThumbnails() {
+        return thumbnails;
+    }
+
+    public void setThumbnails(Map<String, String> thumbnails) {
+        this.thumbnails = thumbnails;
+    }
+
+    public Map<String, String> getProcessing() {
+        return processing;
+    }
+
+    public void setProcessing(Map<String, String> processing) {
+        this.processing = processing;
+    }
+
+    public Double getDuration() {
+        return duration;
+    }
+
+    public void setDuration(Double duration) {
+        this.duration = duration;
+    }
 }
@@ -21,6 +21,8 @@ public class MusicianProfileDto {
     private Date updatedAt;
     private double averageRating;
     private int totalRatings;
+    private long[] ratingHistogram; // Number of ratings of each value, 1 to 5 (null if never computed)
+    private Double rankingScore;    // Bayesian average the leaderboard ranks by (null if never computed)
     
     public MusicianProfileDto() {
         this.genres = new ArrayList<>();
@@ -74,7 +76,10 @@ public class MusicianProfileDto {
             instruments.addAll(docInstruments);
         }
         
-        return new MusicianProfileDto(
+        // Absent when the document was read with a projection
+        Number averageRating = doc.get("averageRating", Number.class);
+        
+        MusicianProfileDto profile = new MusicianProfileDto(
             id,
             doc.getString("userId"),
             doc.getString("name"),
@@ -84,9 +89,23 @@ public class MusicianProfileDto {
             instruments,
             doc.getDate("createdAt"),
             doc.getDate("updatedAt"),
-            doc.getDouble("averageRating"),
+            averageRating != null ? averageRating.doubleValue() : 0.0,
             doc.getInteger("totalRatings", 0)
         );
+        Document histogram = doc.get("ratingHistogram", Document.class);
+        if (histogram != null) {
+            long[] counts = new long[5];
+            for (int value = 1; value <= 5; value++) {
+                Number count = histogram.get(String.valueOf(value), Number.class);
+                counts[value - 1] = count != null ? count.longValue() : 0;
+            }
+            profile.setRatingHistogram(counts);
+        }
+        Number rankingScore = doc.get("rankingScore", Number.class);
+        if (rankingScore != null) {
+            profile.setRankingScore(rankingScore.doubleValue());
+        }
+        return profile;
     }
     
     // Convert to MongoDB Document
@@ -111,7 +130,18 @@ public class MusicianProfileDto {
             .append("createdAt", createdAt)
             .append("updatedAt", new Date())
             .append("averageRating", averageRating)
-            .append("totalRatings", totalRatings);
+            .append("totalRatings", totalRatings)
+            .append("ratingHistogram", ratingHistogram != null ? histogramDocument(ratingHistogram) : null)
+            .append("rankingScore", rankingScore);
+    }
+    
+    // Stored form of a rating histogram, keyed by rating value
+    public static Document histogramDocument(long[] histogram) {
+        Document doc = new Document();
+        for (int value = 1; value <= 5; value++) {
+            doc.append(String.valueOf(value), histogram[value - 1]);
+        }
+        return doc;
     }
 
     // Getters and setters
@@ -202,4 +232,20 @@ public class MusicianProfileDto {
     public void setTotalRatings(int totalRatings) {
         this.totalRatings = totalRatings;
     }
+
+    public long[] getRatingHistogram() {
+        return ratingHistogram;
+    }
+
+    public void setRatingHistogram(long[] ratingHistogram) {
+        this.ratingHistogram = ratingHistogram;
+    }
+
+    public Double getRankingScore() {
+        return rankingScore;
+    }
+
+    public void setRankingScore(Double rankingScore) {
+        this.rankingScore = rankingScore;
+    }
 }
@@ -0,0 +1,132 @@
+package com.multimedia.ms.model;
+
+import java.util.Date;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Data transfer object for background processing jobs of uploaded files
+ */
+public class ProcessingJobDto {
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+    
+    private String id;             // MongoDB ObjectId
+    private String multimediaId;   // Multimedia metadata the results are recorded on
+    private String fileId;         // GridFS file the job reads
+    private String type;           // What the job computes (e.g., thumbnails)
+    private String status;         // pending, running or failed; done jobs are removed
+    private int attempts;          // Times the job has been claimed
+    private Date runAt;            // Earliest next run, or end of the lease while running
+    private String leaseId;        // Identifies the claim of the worker running the job
+    private String lastError;      // Message of the last failed attempt
+    private Date createdAt;
+    
+    public ProcessingJobDto() {
+        this.status = STATUS_PENDING;
+        this.createdAt = new Date();
+    }
+    
+    // Factory method to create from MongoDB Document
+    public static ProcessingJobDto fromDocument(Document doc) {
+        if (doc == null) return null;
+        
+        ProcessingJobDto job = new ProcessingJobDto();
+        ObjectId objectId = doc.getObjectId("_id");
+        job.id = objectId != null ? objectId.toString() : null;
+        job.multimediaId = doc.getObjectId("multimediaId").toString();
+        job.fileId = doc.getObjectId("fileId").toString();
+        job.type = doc.getString("type");
+        job.status = doc.getString("status");
+        job.attempts = doc.getInteger("attempts", 0);
+        job.runAt = doc.getDate("runAt");
+        ObjectId leaseId = doc.getObjectId("leaseId");
+        job.leaseId = leaseId != null ? leaseId.toString() : null;
+        job.lastError = doc.getString("lastError");
+        job.createdAt = doc.getDate("createdAt");
+        return job;
+    }
+    
+    // Getters and setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getMultimediaId() {
+        return multimediaId;
+    }
+
+    public void setMultimediaId(String multimediaId) {
+        this.multimediaId = multimediaId;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getRunAt() {
+        return runAt;
+    }
+
+    public void setRunAt(Date runAt) {
+        this.runAt = runAt;
+    }
+
+    public String getLeaseId() {
+        return leaseId;
+    }
+
+    public void setLeaseId(String leaseId) {
+        this.leaseId = leaseId;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,75 @@
+package com.multimedia.ms.model;
+
+/**
+ * Data transfer object for aggregated rating statistics
+ */
+public class RatingStatsDto {
+    private long count;            // Number of ratings
+    private double averageRating;  // Mean rating value (0 when there are no ratings)
+    private long[] histogram;      // Number of ratings of each value, 1 to 5 (null if unknown)
+    private int minRating;         // Lowest rating value (0 when there are no ratings or not computed)
+    private int maxRating;         // Highest rating value (0 when there are no ratings or not computed)
+    private double standardDeviation; // Population standard deviation of the rating values
+    
+    public RatingStatsDto() {
+    }
+    
+    public RatingStatsDto(long count, double averageRating) {
+        this.count = count;
+        this.averageRating = averageRating;
+    }
+    
+    public RatingStatsDto(long count, double averageRating, long[] histogram) {
+        this(count, averageRating);
+        this.histogram = histogram;
+    }
+    
+    // Getters and setters
+    public long getCount() {
+        return count;
+    }
+    
+    public void setCount(long count) {
+        this.count = count;
+    }
+    
+    public double getAverageRating() {
+        return averageRating;
+    }
+    
+    public void setAverageRating(double averageRating) {
+        this.averageRating = averageRating;
+    }
+    
+    public long[] getHistogram() {
+        return histogram;
+    }
+    
+    public void setHistogram(long[] histogram) {
+        this.histogram = histogram;
+    }
+    
+    public int getMinRating() {
+        return minRating;
+    }
+    
+    public void setMinRating(int minRating) {
+        this.minRating = minRating;
+    }
+    
+    public int getMaxRating() {
+        return maxRating;
+    }
+    
+    public void setMaxRating(int maxRating) {
+        this.maxRating = maxRating;
+    }
+    
+    public double getStandardDeviation() {
+        return standardDeviation;
+    }
+    
+    public void setStandardDeviation(double standardDeviation) {
+        this.standardDeviation = standardDeviation;
+    }
+}
@@ -0,0 +1,215 @@
+package com.multimedia.ms.model;
+
+import java.util.Date;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Data transfer object for resumable upload sessions
+ */
+public class UploadSessionDto {
+    private String id;             // MongoDB ObjectId, the upload ID given to the client
+    private String fileId;         // GridFS file ID the chunks are written under
+    private String multimediaId;   // ID of the multimedia metadata created on completion
+    private String musicianId;     // Associated musician ID
+    private String filename;       // Original filename
+    private String contentType;    // MIME type
+    private String title;          // Display title
+    private String description;    // File description
+    private boolean isPublic;      // Whether the file will be publicly accessible
+    private long length;           // Declared size in bytes
+    private int chunkSize;         // GridFS chunk size in bytes
+    private long offset;           // Bytes received so far
+    private byte[] pending;        // Received bytes of the chunk not yet complete
+    private Date createdAt;
+    private Date expiresAt;        // Abandoned sessions are purged after this date
+    private Date completedAt;      // When the file was created from the session (null while open)
+    
+    public UploadSessionDto() {
+        this.createdAt = new Date();
+        this.isPublic = true;
+        this.pending = new byte[0];
+    }
+    
+    // Factory method to create from MongoDB Document
+    public static UploadSessionDto fromDocument(Document doc) {
+        if (doc == null) return null;
+        
+        UploadSessionDto session = new UploadSessionDto();
+        ObjectId objectId = doc.getObjectId("_id");
+        session.id = objectId != null ? objectId.toString() : null;
+        session.fileId = doc.getObjectId("fileId").toString();
+        session.multimediaId = doc.getObjectId("multimediaId").toString();
+        session.musicianId = doc.getString("musicianId");
+        session.filename = doc.getString("filename");
+        session.contentType = doc.getString("contentType");
+        session.title = doc.getString("title");
+        session.description = doc.getString("description");
+        session.isPublic = doc.getBoolean("isPublic", true);
+        session.length = doc.getLong("length");
+        session.chunkSize = doc.getInteger("chunkSize");
+        session.offset = doc.getLong("offset");
+        Binary pending = doc.get("pending", Binary.class);
+        session.pending = pending != null ? pending.getData() : new byte[0];
+        session.createdAt = doc.getDate("createdAt");
+        session.expiresAt = doc.getDate("expiresAt");
+        session.completedAt = doc.getDate("completedAt");
+        return session;
+    }
+    
+    // Convert to MongoDB Document
+    public Document toDocument() {
+        Document doc = new Document();
+        
+        if (id != null && !id.isEmpty()) {
+            doc.append("_id", new ObjectId(id));
+        }
+        
+        return doc
+            .append("fileId", new ObjectId(fileId))
+            .append("multimediaId", new ObjectId(multimediaId))
+            .append("musicianId", musicianId)
+            .append("filename", filename)
+            .append("contentType", contentType)
+            .append("title", title)
+            .append("description", description)
+            .append("isPublic", isPublic)
+            .append("length", length)
+            .append("chunkSize", chunkSize)
+            .append("offset", offset)
+            .append("pending", new Binary(pending))
+            .append("createdAt", createdAt)
+            .append("expiresAt", expiresAt)
+            .append("completedAt", completedAt);
+    }
+    
+    // Getters and setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public String getMultimediaId() {
+        return multimediaId;
+    }
+
+    public void setMultimediaId(String multimediaId) {
+        this.multimediaId = multimediaId;
+    }
+
+    public String getMusicianId() {
+        return musicianId;
+    }
+
+    public void setMusicianId(String musicianId) {
+        this.musicianId = musicianId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public boolean isIsPublic() {
+        return isPublic;
+    }
+
+    public void setIsPublic(boolean isPublic) {
+        this.isPublic = isPublic;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public byte[] getPending() {
+        return pending;
+    }
+
+    public void setPending(byte[] pending) {
+        this.pending = pending;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public Date getCompletedAt() {
+        return completedAt;
+    }
+
+    public void setCompletedAt(Date completedAt) {
+        this.completedAt = completedAt;
+    }
+}
@@ -0,0 +1,133 @@
+package com.multimedia.ms.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Inclusive byte range of a representation, as requested through the HTTP Range header
+ */
+public class ByteRange {
+    
+    // Requests asking for more ranges than this are served in full
+    private static final int MAX_RANGES = 16;
+    
+    private final long start;
+    private final long end;
+    
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+    
+    /**
+     * Parse a Range header against a representation of the given length.
+     * Satisfiable ranges are clamped to the length, sorted and overlapping ones are merged.
+     *
+     * @param header The value of the Range header (may be null)
+     * @param length The total length of the representation in bytes
+     * @return The ranges to serve, an empty list if none of them is satisfiable,
+     *         or null if the header must be ignored and the full content served
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+                    if (suffixLength == 0 || length == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffixLength);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                    if (start < 0 || (!last.isEmpty() && end < start)) {
+                        return null;
+                    }
+                    if (start >= length) {
+                        continue;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new ByteRange(start, end));
+        }
+        
+        return merge(ranges);
+    }
+    
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+    
+    public long getStart() {
+        return start;
+    }
+    
+    public long getEnd() {
+        return end;
+    }
+    
+    public long getLength() {
+        return end - start + 1;
+    }
+    
+    /**
+     * Format this range for a Content-Range header
+     *
+     * @param totalLength The total length of the representation
+     * @return The Content-Range header value
+     */
+    public String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+}
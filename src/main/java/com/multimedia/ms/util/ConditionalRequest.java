@@ -0,0 +1,91 @@
+package com.multimedia.ms.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.Date;
+
+/**
+ * Evaluation of the HTTP validators of a representation against the conditional
+ * headers of a request (If-None-Match, If-Modified-Since and If-Range).
+ * Validators are compared with the second precision of HTTP dates.
+ */
+public class ConditionalRequest {
+    
+    /**
+     * Build a strong entity tag
+     *
+     * @param value The opaque value identifying the representation
+     * @return The quoted entity tag
+     */
+    public static String strongEtag(String value) {
+        return "\"" + value + "\"";
+    }
+    
+    /**
+     * Check whether the client already holds the current representation, so that a
+     * GET or HEAD request can be answered with 304 Not Modified.
+     * If-None-Match takes precedence over If-Modified-Since and is compared weakly.
+     *
+     * @param request servlet request
+     * @param etag The current entity tag
+     * @param lastModified The last modification date (may be null)
+     * @return true if the representation has not changed
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, Date lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || opaqueTag(tag).equals(opaqueTag(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified == null) {
+            return false;
+        }
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            return since >= 0 && lastModified.getTime() / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Check the If-Range precondition of a range request. The Range header only
+     * applies if the validator matches the current representation: an entity tag
+     * by strong comparison, or a date equal to the last modification date.
+     *
+     * @param request servlet request
+     * @param etag The current entity tag
+     * @param lastModified The last modification date (may be null)
+     * @return true if the Range header applies, false if the full content must be sent
+     */
+    public static boolean isIfRangeSatisfied(HttpServletRequest request, String etag, Date lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if (lastModified == null) {
+            return false;
+        }
+        try {
+            return request.getDateHeader("If-Range") / 1000 == lastModified.getTime() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    // Weak comparison ignores the W/ prefix
+    private static String opaqueTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
@@ -0,0 +1,255 @@
+package com.multimedia.ms.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Resizing of uploaded images with javax.imageio.
+ *
+ * Large sources are decoded with subsampling, so a phone photo is never held in
+ * memory at full resolution, and the EXIF orientation of JPEG files is applied so
+ * that thumbnails are upright. Results are opaque and encoded as JPEG; transparent
+ * areas are flattened onto white.
+ */
+public class ImageResizer {
+    
+    private static final float JPEG_QUALITY = 0.85f;
+    // EXIF APP1 marker and the TIFF tag holding the orientation
+    private static final int APP1_MARKER = 0xE1;
+    private static final int ORIENTATION_TAG = 0x0112;
+    
+    /**
+     * Decode an image, subsampled to no less than twice the given size
+     *
+     * @param in The encoded image
+     * @param largestSize Largest size the image will be scaled to, in pixels
+     * @param maxPixels Sources with more pixels than this are not decoded
+     * @return The upright image, or null if the format is not supported or the image too large
+     * @throws IOException if the image cannot be read
+     */
+    public static BufferedImage read(InputStream in, int largestSize, long maxPixels) throws IOException {
+        try (ImageInputStream imageStream = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageStream, true, false);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > maxPixels) {
+                    return null;
+                }
+                int step = Math.max(1, Math.max(width, height) / (2 * largestSize));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                int orientation;
+                try {
+                    orientation = exifOrientation(reader.getImageMetadata(0));
+                } catch (IOException e) {
+                    // Metadata the reader does not accept does not make the image unusable
+                    orientation = 1;
+                }
+                return orient(image, orientation);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    /**
+     * Scale an image down so that its longest side is the given size.
+     * The image is halved in steps first, which keeps bilinear filtering from
+     * skipping source pixels.
+     *
+     * @param source The image
+     * @param size The longest side of the result, in pixels
+     * @return The scaled image, opaque RGB
+     */
+    public static BufferedImage scale(BufferedImage source, int size) {
+        double ratio = (double) size / Math.max(source.getWidth(), source.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+        
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        while (width / 2 >= targetWidth && height / 2 >= targetHeight) {
+            width /= 2;
+            height /= 2;
+            current = draw(current, width, height);
+        }
+        return draw(current, targetWidth, targetHeight);
+    }
+    
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+    
+    /**
+     * Encode an opaque image as JPEG
+     *
+     * @param image The image, as returned by {@link #scale}
+     * @return The encoded image
+     * @throws IOException if the image cannot be encoded
+     */
+    public static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream imageStream = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(imageStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Read the EXIF orientation (1 to 8) from the metadata of a JPEG image
+     *
+     * @return The orientation, 1 (upright) if absent or unreadable
+     */
+    private static int exifOrientation(IIOMetadata metadata) {
+        if (metadata == null || !"javax_imageio_jpeg_image_1.0".equals(metadata.getNativeMetadataFormatName())) {
+            return 1;
+        }
+        Node root = metadata.getAsTree("javax_imageio_jpeg_image_1.0");
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!"markerSequence".equals(node.getNodeName())) {
+                continue;
+            }
+            for (Node marker = node.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+                if ("unknown".equals(marker.getNodeName()) && marker instanceof IIOMetadataNode) {
+                    IIOMetadataNode unknown = (IIOMetadataNode) marker;
+                    if (String.valueOf(APP1_MARKER).equals(unknown.getAttribute("MarkerTag"))
+                            && unknown.getUserObject() instanceof byte[]) {
+                        return orientationTag((byte[]) unknown.getUserObject());
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+    
+    // Walks the first IFD of the TIFF structure that follows the "Exif\0\0" header
+    private static int orientationTag(byte[] app1) {
+        try {
+            if (app1.length < 14 || app1[0] != 'E' || app1[1] != 'x' || app1[2] != 'i' || app1[3] != 'f') {
+                return 1;
+            }
+            ByteBuffer tiff = ByteBuffer.wrap(app1, 6, app1.length - 6).slice();
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            int ifd = tiff.getInt(4);
+            int entries = tiff.getShort(ifd) & 0xFFFF;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd + 2 + i * 12;
+                if ((tiff.getShort(entry) & 0xFFFF) == ORIENTATION_TAG) {
+                    int orientation = tiff.getShort(entry + 8) & 0xFFFF;
+                    return orientation >= 1 && orientation <= 8 ? orientation : 1;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated or malformed EXIF data
+        }
+        return 1;
+    }
+    
+    /**
+     * Rotate or flip an image into its upright position
+     *
+     * @param image The image as stored
+     * @param orientation The EXIF orientation
+     * @return The upright image
+     */
+    private static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation == 1) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean swap = orientation >= 5;
+        AffineTransform transform = new AffineTransform();
+        switch (orientation) {
+            case 2: // Mirrored horizontally
+                transform.translate(width, 0);
+                transform.scale(-1, 1);
+                break;
+            case 3: // Rotated 180
+                transform.translate(width, height);
+                transform.rotate(Math.PI);
+                break;
+            case 4: // Mirrored vertically
+                transform.translate(0, height);
+                transform.scale(1, -1);
+                break;
+            case 5: // Mirrored along the top-left diagonal
+                transform.rotate(Math.PI / 2);
+                transform.scale(1, -1);
+                break;
+            case 6: // Rotated 90 clockwise
+                transform.translate(height, 0);
+                transform.rotate(Math.PI / 2);
+                break;
+            case 7: // Mirrored along the top-right diagonal
+                transform.scale(-1, 1);
+                transform.translate(-height, 0);
+                transform.translate(0, width);
+                transform.rotate(3 * Math.PI / 2);
+                break;
+            case 8: // Rotated 90 counterclockwise
+                transform.translate(0, width);
+                transform.rotate(3 * Math.PI / 2);
+                break;
+            default:
+                return image;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage target = new BufferedImage(swap ? height : width, swap ? width : height, type);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,134 @@
+package com.multimedia.ms.util;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import org.bson.types.ObjectId;
+
+/**
+ * Helpers for keyset pagination over the _id index.
+ * Cursors are the URL-safe Base64 form of the last returned ObjectId, so clients
+ * treat them as opaque tokens and every page is an index range scan. Listings
+ * ranked by a score use cursors holding the score of the last item before its ID.
+ */
+public class Pagination {
+    
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 200;
+    
+    /**
+     * Parse the page size requested by a client
+     * 
+     * @param value The raw limit parameter (may be null)
+     * @return The page size, between 1 and MAX_LIMIT
+     * @throws IllegalArgumentException if the value is not a positive number
+     */
+    public static int parseLimit(String value) {
+        if (Validator.isEmpty(value)) {
+            return DEFAULT_LIMIT;
+        }
+        
+        int limit;
+        try {
+            limit = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + value);
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return Math.min(limit, MAX_LIMIT);
+    }
+    
+    /**
+     * Encode the key of the last item of a page as a cursor
+     * 
+     * @param lastId The ObjectId of the last item
+     * @return Opaque cursor string
+     */
+    public static String encodeCursor(ObjectId lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastId.toByteArray());
+    }
+    
+    /**
+     * Decode a cursor received from a client
+     * 
+     * @param cursor The cursor string (may be null)
+     * @return The ObjectId after which the page starts, or null for the first page
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static ObjectId decodeCursor(String cursor) {
+        if (Validator.isEmpty(cursor)) {
+            return null;
+        }
+        
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor.trim());
+            if (bytes.length != 12) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return new ObjectId(bytes);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+    
+    /**
+     * Encode the key of the last item of a page ranked by score as a cursor
+     * 
+     * @param score The score of the last item
+     * @param lastId The ObjectId of the last item
+     * @return Opaque cursor string
+     */
+    public static String encodeCursor(double score, ObjectId lastId) {
+        ByteBuffer key = ByteBuffer.allocate(20).putDouble(score).put(lastId.toByteArray());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.array());
+    }
+    
+    /**
+     * Decode a cursor of a listing ranked by score received from a client
+     * 
+     * @param cursor The cursor string (may be null)
+     * @return The key after which the page starts, or null for the first page
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static RankedCursor decodeRankedCursor(String cursor) {
+        if (Validator.isEmpty(cursor)) {
+            return null;
+        }
+        
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor.trim());
+            if (bytes.length != 20) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            ByteBuffer key = ByteBuffer.wrap(bytes);
+            double score = key.getDouble();
+            byte[] id = new byte[12];
+            key.get(id);
+            return new RankedCursor(score, new ObjectId(id));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+    
+    /**
+     * Position in a listing ranked by score, descending, then by ID
+     */
+    public static final class RankedCursor {
+        private final double score;
+        private final ObjectId id;
+        
+        RankedCursor(double score, ObjectId id) {
+            this.score = score;
+            this.id = id;
+        }
+        
+        public double getScore() {
+            return score;
+        }
+        
+        public ObjectId getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.multimedia.ms.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Records where virtual threads get pinned to their carrier thread.
+ *
+ * A virtual thread that blocks inside a synchronized block or a native frame keeps
+ * its carrier busy, and enough of them at once starve the carrier pool. This monitor
+ * listens to the JFR jdk.VirtualThreadPinned event in-process and aggregates the
+ * pinned time by call site, so hotspots can be read from /debug/execution without
+ * attaching a profiler.
+ */
+public final class PinningMonitor implements AutoCloseable {
+    
+    private static final Logger LOGGER = Logger.getLogger(PinningMonitor.class.getName());
+    
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    
+    // Frames kept per call site, enough to go from the blocking call to application code
+    private static final int SITE_FRAMES = 6;
+    
+    private final RecordingStream stream;
+    private final long thresholdMillis;
+    private final Map<String, Site> sites = new ConcurrentHashMap<>();
+    
+    private PinningMonitor(RecordingStream stream, long thresholdMillis) {
+        this.stream = stream;
+        this.thresholdMillis = thresholdMillis;
+    }
+    
+    /**
+     * Start recording pinning events
+     *
+     * @param thresholdMillis Minimum pinned time reported by the JVM
+     * @return The running monitor, or null if JFR is not available in this runtime
+     */
+    public static PinningMonitor start(long thresholdMillis) {
+        RecordingStream stream;
+        try {
+            stream = new RecordingStream();
+        } catch (RuntimeException | LinkageError e) {
+            LOGGER.log(Level.WARNING, "JFR not available, virtual thread pinning will not be recorded", e);
+            return null;
+        }
+        PinningMonitor monitor = new PinningMonitor(stream, thresholdMillis);
+        stream.enable(PINNED_EVENT)
+                .withThreshold(Duration.ofMillis(thresholdMillis))
+                .withStackTrace();
+        stream.onEvent(PINNED_EVENT, monitor::record);
+        stream.startAsync();
+        LOGGER.info("Recording virtual thread pinning longer than " + thresholdMillis + " ms");
+        return monitor;
+    }
+    
+    /**
+     * Get the minimum pinned time recorded
+     *
+     * @return The threshold in milliseconds
+     */
+    public long getThresholdMillis() {
+        return thresholdMillis;
+    }
+    
+    /**
+     * Get the recorded call sites, the longest total pinned time first
+     *
+     * @param limit Maximum number of call sites returned
+     * @return The call sites
+     */
+    public List<Hotspot> getHotspots(int limit) {
+        List<Hotspot> hotspots = new ArrayList<>();
+        sites.forEach((stackTrace, site) -> hotspots.add(new Hotspot(stackTrace,
+                site.count.sum(), site.totalNanos.sum() / 1_000_000, site.maxNanos / 1_000_000)));
+        hotspots.sort(Comparator.comparingLong(Hotspot::getTotalMillis).reversed());
+        return hotspots.size() > limit ? hotspots.subList(0, limit) : hotspots;
+    }
+    
+    private void record(RecordedEvent event) {
+        String stackTrace = describe(event.getStackTrace());
+        long nanos = event.getDuration().toNanos();
+        Site site = sites.computeIfAbsent(stackTrace, key -> {
+            // Each new site is logged once; repeats only show up in the counters
+            LOGGER.warning("Virtual thread pinned for " + nanos / 1_000_000 + " ms at " + key);
+            return new Site();
+        });
+        site.count.increment();
+        site.totalNanos.add(nanos);
+        site.maxNanos = Math.max(site.maxNanos, nanos);
+    }
+    
+    private static String describe(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "(no stack trace)";
+        }
+        StringBuilder description = new StringBuilder();
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        for (int i = 0; i < frames.size() && i < SITE_FRAMES; i++) {
+            RecordedFrame frame = frames.get(i);
+            if (description.length() > 0) {
+                description.append(" <- ");
+            }
+            description.append(frame.getMethod().getType().getName())
+                    .append('.')
+                    .append(frame.getMethod().getName())
+                    .append(':')
+                    .append(frame.getLineNumber());
+        }
+        return description.toString();
+    }
+    
+    @Override
+    public void close() {
+        stream.close();
+    }
+    
+    /**
+     * Pinned time recorded at one call site
+     */
+    public static final class Hotspot {
+        private final String stackTrace;
+        private final long count;
+        private final long totalMillis;
+        private final long maxMillis;
+        
+        Hotspot(String stackTrace, long count, long totalMillis, long maxMillis) {
+            this.stackTrace = stackTrace;
+            this.count = count;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+        }
+        
+        public String getStackTrace() {
+            return stackTrace;
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+        
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+    }
+    
+    // Events are delivered on the single JFR stream thread, the only writer
+    private static final class Site {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private volatile long maxNanos;
+    }
+}